@@ -24,6 +24,7 @@ import java.util.concurrent.Future;
 import org.apache.commons.lang3.StringEscapeUtils;
 import org.apache.commons.lang3.StringUtils;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.mendix.core.Core;
 import com.mendix.core.CoreException;
 import com.mendix.systemwideinterfaces.core.IContext;
@@ -487,6 +488,12 @@ public class XPath<T>
 	//cache for proxy constructors. Reflection is slow, so reuse as much as possible
 	private static Map<String, Method> initializers = new HashMap<String, Method>();
 	
+	//shared by all batches that prefetch; each batch has at most one retrieval in progress
+	private static final ExecutorService prefetcher = Executors.newCachedThreadPool(new ThreadFactoryBuilder()
+			.setNameFormat("XPath batch prefetcher #%d")
+			.setDaemon(true)
+			.build());
+	
 	public static <T> List<T> createProxyList(IContext c, Class<T> proxieClass, List<IMendixObject> objects) {
 		List<T> res = new ArrayList<T>();
 		if (objects == null || objects.size() == 0)
@@ -742,6 +749,123 @@ public class XPath<T>
 		} while(data.size() > 0);
 	}
 	
+	/**
+	 * Retrieves all items in this xpath query in batches of a limited size, like batch(batchsize, batchProcessor). 
+	 * But instead of using an increasing offset, each batch continues after the last seen value of the key attribute, 
+	 * so that retrieving a batch is equally expensive regardless of how far the iteration has progressed. 
+	 * 
+	 * The key attribute should be unique and not empty, for example XPath.ID, a sequence number or a key. The sorting 
+	 * of this query is replaced by sorting on the key attribute. The limit of this query is respected, the offset is not supported. 
+	 * No count query is performed; the batch processor receives -1 as total. 
+	 * 
+	 * If prefetch is set, the next batch is retrieved in the background while the current batch is processed. It is 
+	 * retrieved in a separate context, so it does not see uncommitted changes made in the context of this query. 
+	 * @param batchsize
+	 * @param keyAttribute
+	 * @param prefetch
+	 * @param batchProcessor
+	 * @throws CoreException
+	 */
+	public void batch(int batchsize, Object keyAttribute, boolean prefetch, IBatchProcessor<T> batchProcessor) throws CoreException
+	{
+		assertEmptyStack();
+		if (this.offset > 0)
+			throw new IllegalStateException("Offset is not supported when retrieving batches by key");
+		
+		final String key = String.valueOf(keyAttribute);
+		this.sorting.clear();
+		this.sorting.put(key, "asc");
+		
+		final IContext prefetchContext = prefetch ? createPrefetchContext() : null;
+		Future<List<IMendixObject>> next = null;
+		
+		try {
+			long remaining = this.limit > -1 ? this.limit : Long.MAX_VALUE;
+			int amount = (int) Math.min(batchsize, remaining);
+			List<IMendixObject> data = retrieveBatchAfter(context, key, null, amount);
+			long i = 0;
+			
+			while (!data.isEmpty()) {
+				remaining -= data.size();
+				
+				//A smaller batch than requested means that this was the last one
+				boolean hasMore = data.size() == amount && remaining > 0;
+				final Object lastValue = getKeyValue(data.get(data.size() - 1), key);
+				final int nextAmount = (int) Math.min(batchsize, remaining);
+				
+				next = null;
+				if (hasMore && prefetch)
+					next = prefetcher.submit(new Callable<List<IMendixObject>>() {
+
+						@Override
+						public List<IMendixObject> call() throws Exception {
+							return retrieveBatchAfter(prefetchContext, key, lastValue, nextAmount);
+						}
+					});
+				
+				for(IMendixObject object : data) {
+					i += 1;
+					try
+					{
+						batchProcessor.onItem(createProxy(context, proxyClass, object), i, -1);
+					}
+					catch (Exception e)
+					{
+						throw new RuntimeException(String.format("Failed to execute batch on '%s' item %d: %s", this.toString(), i, e.getMessage()), e);
+					}
+				}
+				
+				if (!hasMore)
+					break;
+				
+				amount = nextAmount;
+				data = next != null ? getPrefetchedBatch(next) : retrieveBatchAfter(context, key, lastValue, amount);
+			}
+		}
+		finally {
+			if (next != null)
+				next.cancel(true);
+		}
+	}
+	
+	private List<IMendixObject> retrieveBatchAfter(IContext c, String key, Object lastValue, int amount) throws CoreException {
+		String xpath = getXPath();
+		if (lastValue != null)
+			xpath += "[" + key + " > " + valueToXPathValue(lastValue) + "]";
+		
+		return Core.retrieveXPathQuery(c, xpath, amount, 0, sorting);
+	}
+	
+	private Object getKeyValue(IMendixObject object, String key) {
+		Object value = ID.equals(key) ? (Object) object.getId().toLong() : object.getValue(context, key);
+		if (value == null)
+			throw new IllegalStateException("Cannot retrieve batches by key '" + key + "', found an object without a value for it: " + object.getId().toLong());
+		return value;
+	}
+	
+	private static List<IMendixObject> getPrefetchedBatch(Future<List<IMendixObject>> batch) throws CoreException {
+		try {
+			return batch.get();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while retrieving the next batch", e);
+		}
+		catch (ExecutionException e) {
+			if (e.getCause() instanceof CoreException)
+				throw (CoreException) e.getCause();
+			throw new RuntimeException("Failed to retrieve the next batch: " + e.getCause().getMessage(), e.getCause());
+		}
+	}
+	
+	private IContext createPrefetchContext() {
+		if (context.isSystemContext() || context.getSession() == null)
+			return Core.createSystemContext();
+		
+		IContext c = context.getSession().createContext();
+		return context.isSudo() ? c.createSudoClone() : c;
+	}
+	
 	/**
 	 * Batch with parallelization.
 	 * 
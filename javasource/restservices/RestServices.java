@@ -1,11 +1,14 @@
 package restservices;
 
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
+import restservices.publish.BearerToken;
+import restservices.publish.ChangeBus;
 import restservices.publish.DataService;
 import restservices.publish.RestServiceHandler;
 import restservices.util.Utils;
@@ -30,7 +33,154 @@ public class RestServices {
 	 */
 	public static int BATCHSIZE = 1000;
 	public static final int MAXPOLLQUEUE_LENGTH = 10000;
+	
+	/**
+	 * Maximum amount of requests that is executed at the same time by the async consume methods. 
+	 * Use RestConsumer.setMaxConcurrentAsyncRequests to change this setting at runtime. 
+	 */
+	public static int MAX_CONCURRENT_ASYNC_REQUESTS = 20;
+	public static final int MAX_ASYNC_REQUEST_QUEUE_LENGTH = 10000;
 	public static final int LONGPOLL_MAXDURATION = 50; //In seconds
+	
+	/**
+	 * Maximum size in bytes of the published JSON that is kept in memory per data service to serve GET requests. 
+	 * Only applies to services with change tracking enabled, and to services that are loaded after changing this setting. 
+	 * The cache is only updated by changes that are published on this node, and by changes of other nodes if CLUSTER_FANOUT 
+	 * is enabled. So only enable it if the application runs on a single node, or if CLUSTER_FANOUT is enabled, otherwise 
+	 * stale objects are served. 16MB is a reasonable size. 
+	 * 
+	 * Defaults to 0, which disables caching.
+	 */
+	public static long PUBLISHED_OBJECT_CACHE_SIZE = 0;
+	
+	/**
+	 * Amount of change log sequence numbers that is reserved at once. Larger blocks require less commits of the change log, 
+	 * but numbers of a block that was not used up when the application stops are skipped. Not used if CLUSTER_SAFE_PUBLISHING 
+	 * is enabled, numbers are then taken one at a time. 
+	 * 
+	 * Defaults to 1000.
+	 */
+	public static int SEQUENCE_BLOCK_SIZE = 1000;
+	
+	/**
+	 * If enabled, publishUpdate and publishDelete only queue the change, and return immediately. The change is published 
+	 * by background threads at least WRITE_BEHIND_DELAY milliseconds later, once the transaction that published it has ended, 
+	 * and repeated changes of the same object that are still queued are published only once. Applies to services that are loaded after changing this setting. 
+	 * 
+	 * Defaults to false. 
+	 */
+	public static boolean WRITE_BEHIND_PUBLISHING = false;
+	public static int WRITE_BEHIND_THREADS = 2;
+	public static long WRITE_BEHIND_DELAY = 500; //In milliseconds
+	public static final int MAX_WRITE_BEHIND_QUEUE_LENGTH = 10000;
+	public static final int WRITE_BEHIND_SHUTDOWN_TIMEOUT = 30; //In seconds
+	
+	/**
+	 * Amount of threads that run the publish microflow while rebuilding a change log. 
+	 * 
+	 * Defaults to 4. 
+	 */
+	public static int REBUILD_THREADS = 4;
+	public static final int REBUILD_PROGRESS_INTERVAL = 10000; //In milliseconds
+	
+	/**
+	 * Amount of threads that write changes to the connected consumers of changes feeds. Should be set before the first feed is served. 
+	 * 
+	 * Defaults to 2. 
+	 */
+	public static int FEED_WRITER_THREADS = 2;
+	
+	/**
+	 * Maximum amount of bytes that can be waiting to be sent to a consumer of a changes feed. Consumers that fall further behind 
+	 * are asked to reconnect, after which they receive the missed changes from the change log. 
+	 * 
+	 * Defaults to 1MB. 
+	 */
+	public static int MAX_FEED_BUFFER_SIZE = 1024 * 1024;
+	
+	/**
+	 * Interval in seconds at which data is sent to idle consumers of a changes feed, so that proxies and load balancers 
+	 * keep the connection open. Set to zero to disable. 
+	 * 
+	 * Defaults to 15. 
+	 */
+	public static int FEED_HEARTBEAT_INTERVAL = 15;
+	
+	/**
+	 * Amount of recently published changes that is kept in memory per change log, so that feed consumers that reconnect 
+	 * can catch up without querying the database. Applies to services that are loaded after changing this setting. 
+	 * Set to zero to disable. 
+	 * 
+	 * Defaults to 1000. 
+	 */
+	public static int RECENT_CHANGES_BUFFER_SIZE = 1000;
+	
+	/**
+	 * If enabled, changes that are published by other nodes of the cluster are sent to the feed consumers that are connected 
+	 * to this node. Changes are exchanged through CHANGE_BUS if set, otherwise each node polls the change logs in the database 
+	 * every CLUSTER_POLL_INTERVAL milliseconds. Changes are published in order of sequence number, which requires the sequence 
+	 * numbers of CLUSTER_SAFE_PUBLISHING, so fan-out implies it. Applies to services that are loaded after changing this setting. 
+	 * 
+	 * Defaults to false. 
+	 */
+	public static boolean CLUSTER_FANOUT = false;
+	public static ChangeBus CHANGE_BUS = null;
+	public static long CLUSTER_POLL_INTERVAL = 1000; //In milliseconds
+	
+	/**
+	 * Should be enabled if services with a change log are published from multiple nodes of a cluster. Sequence numbers are then 
+	 * taken from the change log in the transaction that stores the change, so that changes of all nodes are committed in order 
+	 * of sequence number, and change items are only updated if they were not updated by another node in the mean time. 
+	 * Applies to services that are loaded after changing this setting. 
+	 * 
+	 * Defaults to false. 
+	 */
+	public static boolean CLUSTER_SAFE_PUBLISHING = false;
+	
+	/**
+	 * Responses larger than this amount of bytes are compressed if the client accepts gzip or deflate encoding. 
+	 * Use setCompressionEnabled to disable compression for a specific service.
+	 * 
+	 * Defaults to 1024. 
+	 */
+	public static int COMPRESSION_THRESHOLD = 1024;
+	
+	/**
+	 * JSON request bodies (POST and PUT) larger than this amount of bytes are sent gzip compressed when consuming a service. 
+	 * Only enable this if the consumed services accept gzip encoded request bodies. 
+	 * 
+	 * Defaults to -1, which disables request compression. 
+	 */
+	public static int REQUEST_COMPRESSION_THRESHOLD = -1;
+	
+	/**
+	 * Amount of seconds that the users of verified basic authentication credentials are remembered, so that subsequent requests 
+	 * with the same credentials don't require a password check. Requests of the same user share a session, instead of 
+	 * starting and ending a session per request. Remembered credentials are dropped if the password of the user changes, 
+	 * or if the user is blocked or deactivated. Should be set before the first request is served. Set to zero to disable. 
+	 * 
+	 * Defaults to 300. 
+	 */
+	public static int AUTHENTICATION_CACHE_TTL = 300;
+	public static int AUTHENTICATION_CACHE_SIZE = 10000;
+	
+	/**
+	 * If enabled, the users returned by authentication microflows are remembered as well, by the Authorization header of the request. 
+	 * Only enable this if authentication microflows only inspect that header, and have no other side effects. 
+	 * 
+	 * Defaults to false. 
+	 */
+	public static boolean AUTHENTICATION_CACHE_MICROFLOWS = false;
+	
+	/**
+	 * Secret that is used to sign and verify bearer tokens. If set, services that require a user role accept an 
+	 * 'Authorization: Bearer <token>' header instead of credentials. Tokens are HMAC SHA-256 signed JSON Web Tokens, 
+	 * that can be created using createBearerToken. The roles of a token only restrict the services it can be used for, 
+	 * requests still run with all roles of the user. 
+	 * 
+	 * Defaults to null, which disables bearer tokens. 
+	 */
+	public static String BEARER_TOKEN_SECRET = null;
 
 	public static ILogNode LOGPUBLISH = Core.getLogger("RestPublish");
 	public static ILogNode LOGCONSUME = Core.getLogger("RestConsume");
@@ -39,6 +189,7 @@ public class RestServices {
 	public static final String END_OF_HTTPHEADER = "\r\n\r\n";
 	public static final String UTF8 = "UTF-8";
 	public static final String BASIC_AUTHENTICATION = "Basic";
+	public static final String BEARER_AUTHENTICATION = "Bearer";
 	public static final String CURRENTUSER_TOKEN = "'" + XPath.CurrentUser + "'";
 	public static final String STYLESHEET =
 			"body { font-family: Arial; font-size: 0.8em; padding: 0px 60px; margin: 0px; }"+
@@ -55,6 +206,8 @@ public class RestServices {
 	public static final String CONTENTTYPE_FORMENCODED = "application/x-www-form-urlencoded";
 	public static final String CONTENTTYPE_MULTIPART = "multipart/form-data";
 	public static final String CONTENTTYPE_OCTET = "application/octet-stream";
+	public static final String CONTENTTYPE_NDJSON = "application/x-ndjson";
+	public static final String CONTENTTYPE_EVENTSTREAM = "text/event-stream";
 
 	public static final String HEADER_ETAG = "ETag";
 	public static final String HEADER_IFNONEMATCH = "If-None-Match";
@@ -63,6 +216,14 @@ public class RestServices {
 	public static final String HEADER_CONTENTTYPE = "Content-Type";
 	public static final String HEADER_WWWAUTHENTICATE = "WWW-Authenticate";
 	public static final String HEADER_CONTENTDISPOSITION = "Content-Disposition";
+	public static final String HEADER_ACCEPTENCODING = "Accept-Encoding";
+	public static final String HEADER_CONTENTENCODING = "Content-Encoding";
+	public static final String HEADER_LINK = "Link";
+	public static final String HEADER_LASTEVENTID = "Last-Event-ID";
+	public static final String HEADER_CACHECONTROL = "Cache-Control";
+	
+	public static final String ENCODING_GZIP = "gzip";
+	public static final String ENCODING_DEFLATE = "deflate";
 	
 	public static String PATH_REST = "rest/";
 	public static final String PATH_LIST = "list";
@@ -77,6 +238,8 @@ public class RestServices {
 	public static final String PARAM_DATA = "data";
 	public static final String PARAM_OFFSET = "offset"; 
 	public static final String PARAM_LIMIT = "limit"; 
+	public static final String PARAM_PRETTY = "pretty";
+	public static final String PARAM_AFTER = "after";
 
 	public static final String CHANGE_DATA = "data";
 	public static final String CHANGE_KEY = "key";
@@ -84,10 +247,34 @@ public class RestServices {
 	public static final String CHANGE_SEQNR = "seq";
 	public static final String CHANGE_ETAG = "etag";
 	public static final String CHANGE_URL = "url";
+	public static final String CHANGE_RESYNC = "resync";
 
 
 	static Map<String, DataService> servicesByEntity = new ConcurrentHashMap<String, DataService>();
 	static Set<String> entitiesWithoutService = Collections.synchronizedSet(new HashSet<String>());
+	static Set<String> uncompressedServices = Collections.synchronizedSet(new HashSet<String>());
+	
+	/**
+	 * Enables or disables response compression for the service with the given name. Compression is enabled by default. 
+	 */
+	public static void setCompressionEnabled(String serviceName, boolean enabled) {
+		if (enabled)
+			uncompressedServices.remove(serviceName);
+		else
+			uncompressedServices.add(serviceName);
+	}
+	
+	/**
+	 * Creates a bearer token for the given user, that is valid for the given amount of seconds. 
+	 * @param roles the roles of the services for which the token can be used, or null to allow all roles of the user
+	 */
+	public static String createBearerToken(String username, Collection<String> roles, long validity) {
+		return BearerToken.create(username, roles, validity);
+	}
+
+	public static boolean isCompressionEnabled(String serviceName) {
+		return !uncompressedServices.contains(serviceName);
+	}
 	
 	public static DataService getServiceForEntity(String entityType) {
 		if (servicesByEntity.containsKey(entityType)) {
@@ -6,6 +6,7 @@ import static org.apache.commons.lang3.StringUtils.isNotEmpty;
 import static restservices.RestServices.CHANGE_DATA;
 import static restservices.RestServices.CHANGE_DELETED;
 import static restservices.RestServices.CHANGE_KEY;
+import static restservices.RestServices.CHANGE_RESYNC;
 import static restservices.RestServices.CHANGE_SEQNR;
 import static restservices.RestServices.PARAM_SINCE;
 import static restservices.RestServices.PARAM_TIMEOUT;
@@ -13,12 +14,14 @@ import static restservices.RestServices.PATH_CHANGES;
 import static restservices.RestServices.PATH_FEED;
 import static restservices.RestServices.PATH_LIST;
 
+import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 
+import org.apache.commons.httpclient.Header;
 import org.apache.commons.httpclient.HttpException;
 import org.apache.commons.httpclient.methods.GetMethod;
 import com.mendix.thirdparty.org.json.JSONException;
@@ -114,7 +117,8 @@ public class ChangeLogListener {
 		String requestUrl = getChangesRequestUrl(true);
 		
 		GetMethod get = this.currentRequest = new GetMethod(requestUrl);
-		get.setRequestHeader(RestServices.HEADER_ACCEPT, RestServices.CONTENTTYPE_APPLICATIONJSON);
+		get.setRequestHeader(RestServices.HEADER_ACCEPT, RestServices.CONTENTTYPE_NDJSON);
+		get.setRequestHeader(RestServices.HEADER_ACCEPTENCODING, RestServices.ENCODING_GZIP + ", " + RestServices.ENCODING_DEFLATE);
 		
 		RestConsumer.includeHeaders(get, headers);
 		int status = RestConsumer.client.executeMethod(get);
@@ -122,26 +126,21 @@ public class ChangeLogListener {
 			if (status != IMxRuntimeResponse.OK)
 				throw new RuntimeException("Failed to setup stream to " + url +  ", status: " + status);
 
-			InputStream inputStream = get.getResponseBodyAsStream();
-		
-			JSONTokener jt = new JSONTokener(inputStream);
-			JSONObject instr = null;
+			InputStream inputStream = RestConsumer.readResponseBody(get);
 			
 			try {
 				isConnected  = true;
-				while(true) {
-					instr = new JSONObject(jt);
-					
-					processChange(instr);
-				}
+				if (isNewlineDelimited(get))
+					readNewlineDelimitedChanges(RestConsumer.openReader(inputStream));
+				else 
+					readChanges(new JSONTokener(inputStream)); //services that are not aware of newline delimited JSON
 			}
 			catch(InterruptedException e2) {
 				cancelled = true;
 				RestServices.LOGCONSUME.warn("Changefeed interrupted", e2);
 			}
 			catch(Exception e) {
-				//Not graceful disconnected?
-				if (!cancelled && !(jt.end() && e instanceof JSONException))
+				if (!cancelled)
 					throw new RuntimeException(e);
 			}
 		}
@@ -151,6 +150,50 @@ public class ChangeLogListener {
 		}
 	}
 
+	private static boolean isNewlineDelimited(GetMethod get) {
+		Header contentType = get.getResponseHeader(RestServices.HEADER_CONTENTTYPE);
+		return contentType != null && contentType.getValue().contains(RestServices.CONTENTTYPE_NDJSON);
+	}
+	
+	/**
+	 * Processes changes until the stream ends. Empty lines are heartbeats. 
+	 */
+	private void readNewlineDelimitedChanges(BufferedReader reader) throws Exception {
+		String line;
+		while((line = reader.readLine()) != null) {
+			if (line.trim().isEmpty())
+				continue;
+			if (!processInstruction(new JSONObject(line)))
+				return;
+		}
+	}
+	
+	private void readChanges(JSONTokener jt) throws Exception {
+		try {
+			while(processInstruction(new JSONObject(jt)))
+				;
+		}
+		catch(JSONException e) {
+			//Not graceful disconnected?
+			if (!jt.end())
+				throw e;
+		}
+	}
+	
+	/**
+	 * Returns false if the stream should be closed
+	 */
+	private boolean processInstruction(JSONObject instr) throws Exception {
+		//the service rebuilt its change log, or we are behind too much. Reconnect to continue from the same revision
+		if (instr.optBoolean(CHANGE_RESYNC, false)) {
+			RestServices.LOGCONSUME.info("Received resync instruction from " + url + ", reconnecting");
+			return false;
+		}
+		
+		processChange(instr);
+		return true;
+	}
+
 	public String getChangesRequestUrl(boolean useFeed) {
 		return Utils.appendParamToUrl(Utils.appendParamToUrl(
 			Utils.appendSlashToUrl(url) + PATH_CHANGES + "/" + (useFeed ? PATH_FEED : PATH_LIST),
@@ -177,6 +220,9 @@ public class ChangeLogListener {
 	}
 	
 	void processChange(JSONObject instr) throws Exception {
+		if (instr.optBoolean(CHANGE_RESYNC, false))
+			return;
+		
 		IContext c = Core.createSystemContext();
 
 		long revision = instr.getLong(CHANGE_SEQNR); 
@@ -200,11 +246,13 @@ public class ChangeLogListener {
 			Core.execute(c, onUpdateMF, ImmutableMap.of(Utils.getArgumentTypes(onUpdateMF).keySet().iterator().next(), (Object) target));
 		}
 		
+		//the feed is resumed after the highest revision, also if a change is received again
 		if (revision <= state.getSequenceNr()) 
 			RestServices.LOGCONSUME.warn("Received revision (" + revision + ") is smaller than the latest known revision (" + state.getSequenceNr() +"), probably the collections are out of sync?");
-		
-		state.setSequenceNr(revision);
-		state.commit();
+		else {
+			state.setSequenceNr(revision);
+			state.commit();
+		}
 	}
 	
 	private void close() {
@@ -5,15 +5,16 @@ import org.apache.commons.httpclient.HttpConnectionManager;
 public class IdleConnectionMonitorThread extends Thread {
 
 	private final HttpConnectionManager connMgr;
-	private long intervalMillis;
-	private long maxIdleTimeMillis;
+	private volatile long intervalMillis;
+	private volatile long maxIdleTimeMillis;
 	private volatile boolean shutdown;
 
 	public IdleConnectionMonitorThread(HttpConnectionManager connMgr, long intervalMillis, long maxIdleTimeMillis) {
-		super();
+		super("RestServices idle connection monitor");
 		this.connMgr = connMgr;
 		this.intervalMillis = intervalMillis;
 		this.maxIdleTimeMillis = maxIdleTimeMillis;
+		setDaemon(true);
 	}
 
 	@Override
@@ -30,10 +31,18 @@ public class IdleConnectionMonitorThread extends Thread {
 		}
 	}
 
+	public void configure(long intervalMillis, long maxIdleTimeMillis) {
+		this.intervalMillis = intervalMillis;
+		this.maxIdleTimeMillis = maxIdleTimeMillis;
+		synchronized (this) {
+			notifyAll();
+		}
+	}
+
 	public void shutdown() {
 		shutdown = true;
 		synchronized (this) {
 			notifyAll();
 		}
 	}
-}
\ No newline at end of file
+}
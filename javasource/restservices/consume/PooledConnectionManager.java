@@ -0,0 +1,208 @@
+package restservices.consume;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.httpclient.ConnectionPoolTimeoutException;
+import org.apache.commons.httpclient.HostConfiguration;
+import org.apache.commons.httpclient.HttpConnection;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+import org.apache.commons.httpclient.params.HttpConnectionParams;
+
+import com.mendix.thirdparty.org.json.JSONObject;
+
+import restservices.RestServices;
+
+/**
+ * Connection manager used by the RestConsumer. Extends the multi threaded connection manager with
+ * per host pool sizes, a maximum connection time to live, built-in idle connection eviction and
+ * statistics about the number of leased, available and pending connections per route.
+ */
+public class PooledConnectionManager extends MultiThreadedHttpConnectionManager {
+
+	public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 10;
+	public static final int DEFAULT_MAX_TOTAL_CONNECTIONS = 100;
+	public static final long DEFAULT_IDLE_CHECK_INTERVAL = 30000L;
+	public static final long DEFAULT_MAX_IDLE_TIME = 60000L;
+
+	/*
+	 * The pool hands out adapters, but releases the wrapped connections. Both share the parameters of the wrapped
+	 * connection, so the lease and the time the connection was opened are stored there.
+	 */
+	private static final String PARAM_LEASE = "restservices.connection.lease";
+	private static final String PARAM_OPENED = "restservices.connection.opened";
+
+	private static class RouteStats {
+		final AtomicInteger leased = new AtomicInteger();
+		final AtomicInteger pending = new AtomicInteger();
+		volatile HostConfiguration hostConfiguration;
+	}
+
+	private final Map<String, RouteStats> routes = new ConcurrentHashMap<String, RouteStats>();
+	private volatile long connectionTimeToLive = -1;
+	private IdleConnectionMonitorThread idleConnectionMonitor = null;
+
+	public PooledConnectionManager() {
+		super();
+		getParams().setDefaultMaxConnectionsPerHost(DEFAULT_MAX_CONNECTIONS_PER_HOST);
+		getParams().setMaxTotalConnections(DEFAULT_MAX_TOTAL_CONNECTIONS);
+	}
+
+	@Override
+	public HttpConnection getConnectionWithTimeout(HostConfiguration hostConfiguration, long timeout) throws ConnectionPoolTimeoutException {
+		startIdleConnectionMonitor();
+
+		RouteStats stats = getRouteStats(getRouteKey(hostConfiguration));
+		stats.hostConfiguration = hostConfiguration;
+
+		stats.pending.incrementAndGet();
+		try {
+			HttpConnection connection = super.getConnectionWithTimeout(hostConfiguration, timeout);
+			HttpConnectionParams params = connection.getParams();
+			synchronized (params) {
+				params.setParameter(PARAM_LEASE, stats);
+				//closed connections are opened by the client right after they are leased
+				if (!connection.isOpen())
+					params.setLongParameter(PARAM_OPENED, System.currentTimeMillis());
+			}
+			stats.leased.incrementAndGet();
+			return connection;
+		}
+		finally {
+			stats.pending.decrementAndGet();
+		}
+	}
+
+	@Override
+	public void releaseConnection(HttpConnection conn) {
+		RouteStats stats;
+		HttpConnectionParams params = conn.getParams();
+		synchronized (params) {
+			stats = (RouteStats) params.getParameter(PARAM_LEASE);
+			params.setParameter(PARAM_LEASE, null);
+		}
+		if (stats != null) //null if the connection was released already
+			stats.leased.decrementAndGet();
+
+		closeIfExpired(conn);
+		super.releaseConnection(conn);
+	}
+
+	/**
+	 * Connections are reopened by the client if they are found closed when leased, so closing a connection
+	 * that exceeded its time to live forces a fresh connection on the next request for that route.
+	 *
+	 * Connections that are reopened while leased (after a stale check or a retry) keep the time they were first
+	 * opened, so at worst they are closed somewhat early.
+	 */
+	private void closeIfExpired(HttpConnection conn) {
+		long ttl = connectionTimeToLive;
+		if (ttl <= 0 || !conn.isOpen())
+			return;
+
+		long opened = conn.getParams().getLongParameter(PARAM_OPENED, -1);
+		if (opened != -1 && System.currentTimeMillis() - opened > ttl) {
+			if (RestServices.LOGCONSUME.isDebugEnabled())
+				RestServices.LOGCONSUME.debug("Closing connection to " + getRouteKey(conn) + ", it exceeded its time to live of " + ttl + "ms");
+			conn.close();
+		}
+	}
+
+	/**
+	 * Sets the maximum amount of concurrent connections to the host of the given url.
+	 * Overrides the default maximum amount of connections per host for this host.
+	 * @throws MalformedURLException
+	 */
+	public void setMaxConnectionsForHost(String url, int maxConnections) throws MalformedURLException {
+		if (maxConnections < 1)
+			throw new IllegalArgumentException("Maximum amount of connections should be positive");
+
+		URL u = new URL(url);
+		HostConfiguration hostConfiguration = new HostConfiguration();
+		hostConfiguration.setHost(u.getHost(), u.getPort(), u.getProtocol());
+
+		getParams().setMaxConnectionsPerHost(hostConfiguration, maxConnections);
+		if (getParams().getMaxTotalConnections() < maxConnections * 2)
+			getParams().setMaxTotalConnections(maxConnections * 2);
+	}
+
+	/**
+	 * Sets the maximum lifetime of a connection in milliseconds. Zero or negative means connections are
+	 * kept alive as long as they are used and not idle for too long.
+	 */
+	public void setConnectionTimeToLive(long timeToLive) {
+		this.connectionTimeToLive = timeToLive;
+	}
+
+	public synchronized void startIdleConnectionMonitor() {
+		if (idleConnectionMonitor == null) {
+			idleConnectionMonitor = new IdleConnectionMonitorThread(this, DEFAULT_IDLE_CHECK_INTERVAL, DEFAULT_MAX_IDLE_TIME);
+			idleConnectionMonitor.start();
+		}
+	}
+
+	public synchronized void configureIdleConnectionMonitor(long intervalMillis, long maxIdleTimeMillis) {
+		startIdleConnectionMonitor();
+		idleConnectionMonitor.configure(intervalMillis, maxIdleTimeMillis);
+	}
+
+	@Override
+	public void shutdown() {
+		synchronized (this) {
+			if (idleConnectionMonitor != null) {
+				idleConnectionMonitor.shutdown();
+				idleConnectionMonitor = null;
+			}
+		}
+		super.shutdown();
+	}
+
+	/**
+	 * Returns the pool statistics per route, in the form
+	 * { "https://host:443" : { "leased": 1, "available": 2, "pending": 0, "max": 10 } }
+	 */
+	public JSONObject getStats() {
+		JSONObject res = new JSONObject();
+		for(Entry<String, RouteStats> e : routes.entrySet()) {
+			RouteStats stats = e.getValue();
+			HostConfiguration hostConfiguration = stats.hostConfiguration;
+			int leased = stats.leased.get();
+			int inPool = hostConfiguration == null ? 0 : getConnectionsInPool(hostConfiguration);
+
+			res.put(e.getKey(), new JSONObject()
+				.put("leased", leased)
+				.put("available", Math.max(0, inPool - leased))
+				.put("pending", stats.pending.get())
+				.put("max", getParams().getMaxConnectionsPerHost(hostConfiguration == null ? HostConfiguration.ANY_HOST_CONFIGURATION : hostConfiguration)));
+		}
+		return res;
+	}
+
+	private RouteStats getRouteStats(String routeKey) {
+		RouteStats stats = routes.get(routeKey);
+		if (stats == null) {
+			synchronized (routes) {
+				stats = routes.get(routeKey);
+				if (stats == null) {
+					stats = new RouteStats();
+					routes.put(routeKey, stats);
+				}
+			}
+		}
+		return stats;
+	}
+
+	private static String getRouteKey(HostConfiguration hostConfiguration) {
+		if (hostConfiguration.getHost() == null)
+			return "(no host)";
+		return hostConfiguration.getProtocol().getScheme() + "://" + hostConfiguration.getHost() + ":" + hostConfiguration.getPort();
+	}
+
+	private static String getRouteKey(HttpConnection conn) {
+		return conn.getProtocol().getScheme() + "://" + conn.getHost() + ":" + conn.getPort();
+	}
+}
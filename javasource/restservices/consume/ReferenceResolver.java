@@ -0,0 +1,116 @@
+package restservices.consume;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.Future;
+
+import restservices.RestServices;
+import restservices.consume.RestConsumer.HttpResponseData;
+
+import com.mendix.core.Core;
+import com.mendix.systemwideinterfaces.core.IContext;
+import com.mendix.systemwideinterfaces.core.IMendixIdentifier;
+import com.mendix.systemwideinterfaces.core.IMendixObject;
+
+/**
+ * Collects the urls that are referred to while deserializing, and fetches them concurrently once resolve is called.
+ * Each url is fetched only once; references to the same url (and entity type) are wired to the same object.
+ *
+ * The documents are fetched on the fetch threads of the RestConsumer, but deserialized on the calling thread,
+ * since the context should not be used by multiple threads.
+ */
+public class ReferenceResolver {
+
+	private final IContext context;
+	private final Map<String, IMendixIdentifier> resolved = new HashMap<String, IMendixIdentifier>();
+	private Map<String, List<IMendixObject>> pending = new LinkedHashMap<String, List<IMendixObject>>();
+	private int pendingCount = 0;
+	private boolean resolving = false;
+
+	public ReferenceResolver(IContext context) {
+		if (context == null)
+			throw new IllegalArgumentException("Context should not be null");
+		this.context = context;
+	}
+
+	public IContext getContext() {
+		return context;
+	}
+
+	/**
+	 * Returns the identifier of the object that will contain the data found at the given url.
+	 */
+	public IMendixIdentifier resolveLater(String url, String entityType) {
+		String key = entityType + " " + url;
+		IMendixIdentifier id = resolved.get(key);
+		if (id == null) {
+			IMendixObject target = Core.instantiate(context, entityType);
+			id = target.getId();
+			resolved.put(key, id);
+			resolveInto(url, target);
+		}
+		return id;
+	}
+
+	/**
+	 * Registers that the data found at the given url should be stored in the given target.
+	 */
+	public void resolveInto(String url, IMendixObject target) {
+		List<IMendixObject> targets = pending.get(url);
+		if (targets == null) {
+			targets = new ArrayList<IMendixObject>();
+			pending.put(url, targets);
+		}
+		targets.add(target);
+		pendingCount += 1;
+	}
+
+	public int getPendingCount() {
+		return pendingCount;
+	}
+
+	public boolean isResolving() {
+		return resolving;
+	}
+
+	/**
+	 * Fetches all pending urls, and reads them into their targets. Documents fetched in the process might refer to
+	 * other urls, which are resolved in a next round.
+	 */
+	public void resolve() throws Exception {
+		if (resolving) //already resolving higher up the stack, which will pick up the pending urls
+			return;
+
+		resolving = true;
+		try {
+			resolveRounds();
+		}
+		finally {
+			resolving = false;
+		}
+	}
+
+	private void resolveRounds() throws Exception {
+		while(!pending.isEmpty()) {
+			Map<String, List<IMendixObject>> round = pending;
+			pending = new LinkedHashMap<String, List<IMendixObject>>();
+			pendingCount = 0;
+
+			if (RestServices.LOGCONSUME.isDebugEnabled())
+				RestServices.LOGCONSUME.debug("Resolving " + round.size() + " references");
+
+			Map<String, Future<HttpResponseData>> fetches = new LinkedHashMap<String, Future<HttpResponseData>>();
+			for(String url : round.keySet())
+				fetches.put(url, RestConsumer.fetchAsync(url));
+
+			for(Entry<String, List<IMendixObject>> e : round.entrySet()) {
+				for(IMendixObject target : e.getValue())
+					RestConsumer.readFetchedObject(context, e.getKey(), fetches.get(e.getKey()), target);
+			}
+		}
+	}
+}
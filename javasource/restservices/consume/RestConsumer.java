@@ -1,9 +1,12 @@
 package restservices.consume;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.PushbackInputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
@@ -15,12 +18,26 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
 import org.apache.commons.httpclient.*;
 import org.apache.commons.httpclient.auth.AuthPolicy;
 import org.apache.commons.httpclient.auth.AuthScope;
 import org.apache.commons.httpclient.cookie.CookiePolicy;
 import org.apache.commons.httpclient.cookie.CookieSpec;
+import org.apache.commons.httpclient.methods.ByteArrayRequestEntity;
 import org.apache.commons.httpclient.methods.DeleteMethod;
 import org.apache.commons.httpclient.methods.GetMethod;
 import org.apache.commons.httpclient.methods.InputStreamRequestEntity;
@@ -48,6 +65,7 @@ import restservices.proxies.RequestResult;
 import restservices.proxies.ResponseCode;
 import restservices.proxies.RestServiceError;
 import restservices.util.JsonDeserializer;
+import restservices.util.JsonStreamReader;
 import restservices.util.JsonSerializer;
 import restservices.util.UriTemplate;
 import restservices.util.Utils;
@@ -71,14 +89,12 @@ import communitycommons.StringUtils;
 public class RestConsumer {
 	private static ThreadLocal<HttpResponseData> lastConsumeError = new ThreadLocal<HttpResponseData>();
 	
-    private static IdleConnectionMonitorThread idleConnectionMonitorThread = null;
-	private static MultiThreadedHttpConnectionManager connectionManager = new MultiThreadedHttpConnectionManager();
+	private static PooledConnectionManager connectionManager = new PooledConnectionManager();
     static HttpClient client = new HttpClient(connectionManager);
     
-	static {
-		connectionManager.getParams().setMaxConnectionsPerHost(HostConfiguration.ANY_HOST_CONFIGURATION, 10);
-	}
-    
+	private static ThreadPoolExecutor asyncExecutor = null;
+	private static ThreadPoolExecutor fetchExecutor = null;
+	
 	public static class HttpResponseData{
 		private int status;
 		private String body = null;
@@ -195,6 +211,29 @@ public class RestConsumer {
 		}
 	}
 	
+	/**
+	 * Overrides the global maximum amount of concurrent requests for the host of the given url
+	 * @throws MalformedURLException 
+	 */
+	public static void setMaxConnectionsForHost(String url, int maxConcurrentRequests) throws MalformedURLException {
+		connectionManager.setMaxConnectionsForHost(url, maxConcurrentRequests);
+	}
+	
+	/**
+	 * Sets the maximum time in milliseconds a connection is reused before it is closed and a new connection is set up. 
+	 * Zero or negative disables the time to live. 
+	 */
+	public static void setConnectionTimeToLive(long timeToLive) {
+		connectionManager.setConnectionTimeToLive(timeToLive);
+	}
+	
+	/**
+	 * Returns the amount of leased, available and pending connections per route
+	 */
+	public static JSONObject getConnectionPoolStats() {
+		return connectionManager.getStats();
+	}
+	
 	public static void addHeaderToNextRequest(String header, String value) {
 		prepareNextHeadersMap().put(header, value);
 	}
@@ -264,9 +303,15 @@ public class RestConsumer {
 				request.addRequestHeader(e.getKey(), e.getValue());
 			includeHeaders(request);
 			
+			//Responses are decoded in readResponseBody, unless custom encodings are requested
+			if (request.getRequestHeader(RestServices.HEADER_ACCEPTENCODING) == null)
+				request.setRequestHeader(RestServices.HEADER_ACCEPTENCODING, RestServices.ENCODING_GZIP + ", " + RestServices.ENCODING_DEFLATE);
+			
 			if (params != null && request instanceof PostMethod) 
 				((PostMethod)request).addParameters(mapToNameValuePairs(params));
 			
+			requestEntity = compressRequestEntity(request, requestEntity);
+			
 			if (request instanceof PostMethod && requestEntity != null)
 				((PostMethod)request).setRequestEntity(requestEntity);
 			else if (request instanceof PutMethod && requestEntity != null)
@@ -276,11 +321,11 @@ public class RestConsumer {
 			Header responseEtag = request.getResponseHeader(RestServices.HEADER_ETAG);
 			
 			HttpResponseData response = new HttpResponseData(method, url, status, responseEtag == null ? null : responseEtag.getValue(), request.getResponseHeaders());
-			InputStream instream = request.getResponseBodyAsStream(); 
+			InputStream instream = readResponseBody(request); 
 			if (onSuccess != null && status >= 200 && status < 300 && instream != null) //NO CONENT doesnt yield a stream..
 				onSuccess.apply(instream);
 			else if (instream != null)
-				response.setBody(IOUtils.toString(instream));
+				response.setBody(readBodyAsString(instream));
 			
 			if (RestServices.LOGCONSUME.isDebugEnabled())
 			{
@@ -303,6 +348,94 @@ public class RestConsumer {
 		}
 	}
 	
+	/**
+	 * Response body stream, which is decompressed already and knows the charset of the response.
+	 */
+	private static class ResponseBodyStream extends FilterInputStream {
+		private final String charset;
+
+		ResponseBodyStream(InputStream in, String charset) {
+			super(in);
+			this.charset = charset;
+		}
+	}
+	
+	/**
+	 * Returns the body of the response, decompressed if needed, or null if the response has no body. 
+	 */
+	static InputStream readResponseBody(HttpMethodBase request) throws IOException {
+		InputStream instream = request.getResponseBodyAsStream();
+		if (instream == null)
+			return null;
+		
+		Header contentEncoding = request.getResponseHeader(RestServices.HEADER_CONTENTENCODING);
+		String encoding = contentEncoding == null ? null : contentEncoding.getValue().trim().toLowerCase();
+		
+		if (RestServices.ENCODING_GZIP.equals(encoding) || "x-gzip".equals(encoding))
+			instream = new GZIPInputStream(instream, 8192);
+		else if (RestServices.ENCODING_DEFLATE.equals(encoding)) 
+			instream = inflate(instream);
+		
+		return new ResponseBodyStream(instream, getResponseCharset(request));
+	}
+
+	/**
+	 * 'deflate' should be zlib wrapped, but some servers send raw deflate data. Detect this based on the zlib header. 
+	 */
+	private static InputStream inflate(InputStream instream) throws IOException {
+		PushbackInputStream pushback = new PushbackInputStream(instream, 2);
+		byte[] header = new byte[2];
+		int read = IOUtils.read(pushback, header);
+		if (read > 0)
+			pushback.unread(header, 0, read);
+		
+		boolean zlib = read == 2 && (header[0] & 0x0F) == 8 && (((header[0] & 0xFF) << 8) | (header[1] & 0xFF)) % 31 == 0;
+		return new InflaterInputStream(pushback, new Inflater(!zlib), 8192);
+	}
+	
+	/**
+	 * Returns the charset of the response as specified in the Content-Type header. JSON defaults to UTF-8. 
+	 */
+	private static String getResponseCharset(HttpMethodBase request) {
+		Header contentType = request.getResponseHeader(RestServices.HEADER_CONTENTTYPE);
+		if (contentType != null) {
+			for(HeaderElement element : contentType.getElements()) {
+				NameValuePair charset = element.getParameterByName("charset");
+				if (charset != null && charset.getValue() != null && !charset.getValue().trim().isEmpty())
+					return charset.getValue().trim();
+			}
+		}
+		return RestServices.UTF8;
+	}
+	
+	static BufferedReader openReader(InputStream stream) throws IOException {
+		String charset = stream instanceof ResponseBodyStream ? ((ResponseBodyStream) stream).charset : RestServices.UTF8;
+		return new BufferedReader(new InputStreamReader(stream, charset));
+	}
+	
+	private static String readBodyAsString(InputStream stream) throws IOException {
+		return IOUtils.toString(openReader(stream));
+	}
+	
+	/**
+	 * Gzips large string entities, if enabled by RestServices.REQUEST_COMPRESSION_THRESHOLD. 
+	 * The entity is encoded using the charset of its content type. 
+	 */
+	private static RequestEntity compressRequestEntity(HttpMethodBase request, RequestEntity requestEntity) throws IOException {
+		if (!(requestEntity instanceof StringRequestEntity) || RestServices.REQUEST_COMPRESSION_THRESHOLD < 0 
+				|| requestEntity.getContentLength() <= RestServices.REQUEST_COMPRESSION_THRESHOLD
+				|| request.getRequestHeader(RestServices.HEADER_CONTENTENCODING) != null)
+			return requestEntity;
+		
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		GZIPOutputStream gzip = new GZIPOutputStream(buffer);
+		requestEntity.writeRequest(gzip);
+		gzip.close();
+		
+		request.setRequestHeader(RestServices.HEADER_CONTENTENCODING, RestServices.ENCODING_GZIP);
+		return new ByteArrayRequestEntity(buffer.toByteArray(), requestEntity.getContentType());
+	}
+	
 	private static NameValuePair[] mapToNameValuePairs(Map<String, String> params) {
 		NameValuePair[] res = new NameValuePair[params.size()];
 		int i = 0;
@@ -319,7 +452,12 @@ public class RestConsumer {
 
 			@Override
 			public boolean apply(InputStream stream) {
-				JSONTokener x = new JSONTokener(new BufferedReader(new InputStreamReader(stream)));
+				JSONTokener x;
+				try {
+					x = new JSONTokener(openReader(stream));
+				} catch (IOException e) {
+					throw new RuntimeException(e);
+				}
 				//Based on: https://github.com/douglascrockford/JSON-java/blob/master/JSONArray.java
 				if (x.nextClean() != '[') 
 		            throw x.syntaxError("A JSONArray text must start with '['");
@@ -351,6 +489,35 @@ public class RestConsumer {
 		}
 	}
 
+	/**
+	 * Streams the JSON array at the given url. The callback is invoked for each element of the array with the reader 
+	 * positioned at that element, and should consume exactly one value from the reader. 
+	 */
+	public static void readJsonArrayStream(String url, final Predicate<JsonStreamReader> onElement) throws Exception, IOException {
+		lastConsumeError.set(null);
+		HttpResponseData response = doRequest("GET", url, null, null, null, new Predicate<InputStream>() {
+
+			@Override
+			public boolean apply(InputStream stream) {
+				try {
+					JsonStreamReader reader = new JsonStreamReader(openReader(stream));
+					reader.beginArray();
+					while(reader.peek() != JsonStreamReader.Token.END_ARRAY)
+						onElement.apply(reader);
+					reader.endArray();
+				} catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+				return true;
+			}
+		});
+		
+		if (response.getStatus() != HttpStatus.SC_OK) {
+			lastConsumeError.set(response);
+			throw  new RestConsumeException(response.getStatus(), "Failed to start request stream on '" + url + "', expected status to be 200 OK");
+		}
+	}
+
 	public static void registerCredentials(String urlBasePath, String username, String password) throws MalformedURLException
 	{
 		client.getParams().setAuthenticationPreemptive(true);
@@ -375,22 +542,38 @@ public class RestConsumer {
 		client.getState().setCredentials(new AuthScope(AuthScope.ANY), defaultcreds);
 	}
 
-	private static void getCollectionHelper(final IContext context, String collectionUrl, final Function<IContext, IMendixObject> objectFactory, final Function<IMendixObject, Boolean> callback) throws Exception
+	/**
+	 * Reads the collection at the given url. Deserialized objects are committed in batches of RestServices.BATCHSIZE. 
+	 * If commitBeforeCallback is set, all pending objects are committed before the callback is invoked for an item. 
+	 */
+	private static void getCollectionHelper(final IContext context, String collectionUrl, final Function<IContext, IMendixObject> objectFactory, final Function<IMendixObject, Boolean> callback, final boolean commitBeforeCallback) throws Exception
 	{
-		RestConsumer.readJsonObjectStream(collectionUrl, new Predicate<Object>() {
-
-			@Override
-			public boolean apply(Object data) {
-				IMendixObject item = objectFactory.apply(context);
-				try {
-					JsonDeserializer.readJsonDataIntoMendixObject(context, data, item, true);
-				} catch (Exception e) {
-					throw new RuntimeException(e);
+		boolean batching = JsonDeserializer.beginBatch(context, RestServices.BATCHSIZE);
+		try {
+			RestConsumer.readJsonArrayStream(collectionUrl, new Predicate<JsonStreamReader>() {
+	
+				@Override
+				public boolean apply(JsonStreamReader reader) {
+					IMendixObject item = objectFactory.apply(context);
+					try {
+						JsonDeserializer.readJsonDataIntoMendixObject(context, reader, item, true);
+						if (commitBeforeCallback)
+							JsonDeserializer.flushBatch();
+					} catch (Exception e) {
+						throw new RuntimeException(e);
+					}
+					callback.apply(item);
+					return true;
 				}
-				callback.apply(item);
-				return true;
-			}
-		});
+			});
+			
+			if (batching)
+				JsonDeserializer.endBatch(true);
+		}
+		finally {
+			if (batching)
+				JsonDeserializer.endBatch(false);
+		}
 	}
 	
 	public static void getCollection(final IContext context, String collectionUrl, final List<IMendixObject> resultList, final IMendixObject firstResult) throws Exception {
@@ -413,19 +596,49 @@ public class RestConsumer {
 				return true;
 			}
 		
+		}, false);
+	}
+	
+	/**
+	 * Streams the collection at the given url and invokes the callback microflow for each item in the collection. 
+	 * Returns when all items have been processed. 
+	 */
+	public static void getCollectionAsync(String collectionUrl, String callbackMicroflow) throws Exception {
+		getCollectionAsync(collectionUrl, callbackMicroflow, getCollectionItemType(callbackMicroflow));
+	}
+	
+	/**
+	 * Like getCollectionAsync, but processes the collection on one of the async request threads. This method returns 
+	 * as soon as the request is scheduled; the returned future throws the exception if processing the collection failed. 
+	 */
+	public static Future<Boolean> getCollectionInBackground(final String collectionUrl, final String callbackMicroflow) throws Exception {
+		final String entityType = getCollectionItemType(callbackMicroflow);
+		final Map<String, String> headers = nextHeaders.get();
+		nextHeaders.set(null);
+		
+		return submitAsync("GET " + collectionUrl, new Callable<Boolean>() {
+
+			@Override
+			public Boolean call() throws Exception {
+				nextHeaders.set(headers);
+				getCollectionAsync(collectionUrl, callbackMicroflow, entityType);
+				return true;
+			}
 		});
 	}
 	
-	public static void getCollectionAsync(String collectionUrl, final String callbackMicroflow) throws Exception {
-		//args check
+	private static String getCollectionItemType(String callbackMicroflow) {
 		Map<String, String> argTypes = Utils.getArgumentTypes(callbackMicroflow);
 		if (argTypes.size() != 1)
 			throw new IllegalArgumentException("Microflow '" + callbackMicroflow + "' should have exactly one argument");
-		final String entityType = argTypes.values().iterator().next();
+		String entityType = argTypes.values().iterator().next();
 
 		if (Core.getMetaObject(entityType) == null)
 			throw new IllegalArgumentException("Microflow '" + callbackMicroflow + "' should expect an entity as argument");
-		
+		return entityType;
+	}
+	
+	private static void getCollectionAsync(String collectionUrl, final String callbackMicroflow, final String entityType) throws Exception {
 		final IContext context = Core.createSystemContext();
 		
 		getCollectionHelper(context, collectionUrl, new Function<IContext, IMendixObject>() {
@@ -444,9 +657,270 @@ public class RestConsumer {
 				}
 				return true;
 			}
+		}, true);
+	}
+	
+	/**
+	 * Sets the maximum amount of requests that are executed at the same time by the async request methods. 
+	 * Requests scheduled beyond this number are queued. Note that the connections per host limit applies as well. 
+	 */
+	public static synchronized void setMaxConcurrentAsyncRequests(int maxConcurrentRequests) {
+		if (maxConcurrentRequests < 1)
+			throw new IllegalArgumentException("Maximum amount of concurrent requests should be positive");
+		
+		RestServices.MAX_CONCURRENT_ASYNC_REQUESTS = maxConcurrentRequests;
+		resizeExecutor(asyncExecutor, maxConcurrentRequests);
+		resizeExecutor(fetchExecutor, maxConcurrentRequests);
+	}
+	
+	private static void resizeExecutor(ThreadPoolExecutor executor, int threads) {
+		if (executor == null)
+			return;
+		if (threads > executor.getMaximumPoolSize()) {
+			executor.setMaximumPoolSize(threads);
+			executor.setCorePoolSize(threads);
+		}
+		else {
+			executor.setCorePoolSize(threads);
+			executor.setMaximumPoolSize(threads);
+		}
+	}
+	
+	private static synchronized ThreadPoolExecutor getAsyncExecutor() {
+		if (asyncExecutor == null)
+			asyncExecutor = createRequestExecutor("RestServices async request thread ");
+		return asyncExecutor;
+	}
+	
+	/**
+	 * Executor for plain fetches, used when resolving references. Tasks on this executor never wait for other tasks,
+	 * so tasks running on the async executor can safely wait for them without starving the pool. 
+	 */
+	private static synchronized ThreadPoolExecutor getFetchExecutor() {
+		if (fetchExecutor == null)
+			fetchExecutor = createRequestExecutor("RestServices fetch thread ");
+		return fetchExecutor;
+	}
+	
+	private static ThreadPoolExecutor createRequestExecutor(final String threadName) {
+		int threads = RestServices.MAX_CONCURRENT_ASYNC_REQUESTS;
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+			new LinkedBlockingQueue<Runnable>(RestServices.MAX_ASYNC_REQUEST_QUEUE_LENGTH),
+			new ThreadFactory() {
+
+				private final ThreadFactory defaultFactory = Executors.defaultThreadFactory();
+				private final AtomicLong threadNr = new AtomicLong();
+
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread t = defaultFactory.newThread(runnable);
+					t.setDaemon(true);
+					t.setName(threadName + threadNr.incrementAndGet());
+					return t;
+				}
+			},
+			new ThreadPoolExecutor.CallerRunsPolicy()); //If the queue is full, the caller executes the request itself which throttles the producer
+		executor.allowCoreThreadTimeOut(true);
+		return executor;
+	}
+	
+	private static <T> Future<T> submitAsync(final String description, final Callable<T> task) {
+		return submitAsync(getAsyncExecutor(), description, task);
+	}
+	
+	private static <T> Future<T> submitAsync(ThreadPoolExecutor executor, final String description, final Callable<T> task) {
+		final Thread caller = Thread.currentThread();
+		
+		return executor.submit(new Callable<T>() {
+
+			@Override
+			public T call() throws Exception {
+				//if the queue is full the caller runs the task itself, its thread state should survive the task in that case
+				boolean callerRuns = Thread.currentThread() == caller;
+				Map<String, String> callerHeaders = callerRuns ? nextHeaders.get() : null;
+				HttpResponseData callerError = callerRuns ? lastConsumeError.get() : null;
+				try {
+					return task.call();
+				}
+				catch (Exception e) {
+					RestServices.LOGCONSUME.error("Async request " + description + " failed: " + e.getMessage(), e);
+					throw e;
+				}
+				finally {
+					nextHeaders.set(callerHeaders);
+					lastConsumeError.set(callerError);
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Creates a context for a request that runs on a different thread than the original context. 
+	 * Contexts should not be used by multiple threads at the same time. 
+	 */
+	private static IContext createAsyncContext(IContext context) {
+		if (context.isSystemContext())
+			return Core.createSystemContext();
+		IContext c = context.getSession().createContext();
+		return context.isSudo() ? c.createSudoClone() : c;
+	}
+	
+	/**
+	 * Async version of 'request'. The request is executed on one of the async request threads, so that many requests 
+	 * can be in flight at the same time. Any headers added to the next request are picked up by this request. 
+	 * 
+	 * The returned future yields the request result, or throws the RestConsumeException if the request failed. 
+	 */
+	public static Future<RequestResult> requestAsync(final IContext context, final HttpMethod method, final String url, 
+			final IMendixObject source, final IMendixObject target, final boolean asFormData) {
+		if (context == null)
+			throw new IllegalArgumentException("Context should not be null");
+
+		final IContext asyncContext = createAsyncContext(context);
+		final Map<String, String> headers = nextHeaders.get();
+		nextHeaders.set(null);
+		
+		return submitAsync((method == null ? HttpMethod.GET : method) + " " + url, new Callable<RequestResult>() {
+
+			@Override
+			public RequestResult call() throws Exception {
+				nextHeaders.set(headers);
+				return request(asyncContext, method, url, source, target, asFormData);
+			}
+		});
+	}
+	
+	/**
+	 * Async version of 'request' which invokes a microflow once the request has completed. 
+	 * 
+	 * The callback microflow should have a RequestResult argument, and optionally a second argument of which the entity type 
+	 * is used to create the object in which the response data is stored. The callback is invoked for failed requests as well, 
+	 * the response code of the RequestResult can be used to distinguish between them. 
+	 */
+	public static Future<RequestResult> requestAsync(final IContext context, final HttpMethod method, final String url, 
+			final IMendixObject source, final boolean asFormData, final String callbackMicroflow) {
+		if (context == null)
+			throw new IllegalArgumentException("Context should not be null");
+		
+		Map<String, String> argTypes = Utils.getArgumentTypes(callbackMicroflow);
+		String resultArg = null;
+		String targetArg = null;
+		String targetType = null;
+		for(Entry<String, String> e : argTypes.entrySet()) {
+			if (RequestResult.entityName.equals(e.getValue()))
+				resultArg = e.getKey();
+			else if (Core.getMetaObject(e.getValue()) != null) {
+				targetArg = e.getKey();
+				targetType = e.getValue();
+			}
+		}
+		
+		if (resultArg == null || argTypes.size() > (targetArg == null ? 1 : 2))
+			throw new IllegalArgumentException("Microflow '" + callbackMicroflow + "' should have one argument of type " + RequestResult.entityName + ", and optionally one argument in which the response will be stored");
+		
+		final IContext asyncContext = createAsyncContext(context);
+		final Map<String, String> headers = nextHeaders.get();
+		nextHeaders.set(null);
+		
+		final String resultArgName = resultArg;
+		final String targetArgName = targetArg;
+		final String targetEntity = targetType;
+		
+		return submitAsync((method == null ? HttpMethod.GET : method) + " " + url, new Callable<RequestResult>() {
+
+			@Override
+			public RequestResult call() throws Exception {
+				nextHeaders.set(headers);
+				IMendixObject target = targetEntity == null ? null : Core.instantiate(asyncContext, targetEntity);
+				
+				RequestResult result;
+				try {
+					result = request(asyncContext, method, url, source, target, asFormData);
+				}
+				catch(RestConsumeException e) {
+					if (!e.hasResponseData())
+						throw e;
+					result = e.getResponseData().asRequestResult(asyncContext);
+				}
+				
+				Map<String, Object> args = new HashMap<String, Object>();
+				args.put(resultArgName, result.getMendixObject());
+				if (targetArgName != null)
+					args.put(targetArgName, target);
+				Core.execute(asyncContext, callbackMicroflow, args);
+				
+				return result;
+			}
+		});
+	}
+	
+	/**
+	 * Fetches the JSON document at the given url on one of the fetch threads. The document is not deserialized, 
+	 * use readFetchedObject for that on the thread that owns the context. 
+	 */
+	static Future<HttpResponseData> fetchAsync(final String url) {
+		return submitAsync(getFetchExecutor(), "GET " + url, new Callable<HttpResponseData>() {
+
+			@Override
+			public HttpResponseData call() throws Exception {
+				final StringBuilder bodyBuffer = new StringBuilder();
+				HttpResponseData response = doRequest("GET", url, null, null, null, new Predicate<InputStream>() {
+
+					@Override
+					public boolean apply(InputStream stream) {
+						try {
+							bodyBuffer.append(readBodyAsString(stream));
+						} catch (IOException e) {
+							throw new RuntimeException(e);
+						}
+						return true;
+					}
+				});
+				
+				if (!response.isOk())
+					throw new RestConsumeException(response);
+				
+				response.setBody(bodyBuffer.toString());
+				return response;
+			}
 		});
 	}
 	
+	/**
+	 * Waits for a document fetched by fetchAsync and reads it into the target, like 'request' does for a GET. 
+	 */
+	static void readFetchedObject(IContext context, String url, Future<HttpResponseData> fetch, IMendixObject target) throws Exception {
+		HttpResponseData response;
+		try {
+			response = fetch.get();
+		}
+		catch(ExecutionException e) {
+			if (e.getCause() instanceof RestConsumeException && ((RestConsumeException) e.getCause()).hasResponseData())
+				lastConsumeError.set(((RestConsumeException) e.getCause()).getResponseData());
+			if (e.getCause() instanceof Exception)
+				throw (Exception) e.getCause();
+			throw e;
+		}
+		
+		//like 'request', a response without body (such as NOT MODIFIED or NO CONTENT) leaves the target unchanged
+		if (!Utils.isEmpty(response.getBody()))
+			readJsonObjectBody(context, response.getBody(), target);
+		storeReferableObjectInfo(context, target, url, response.getETag());
+	}
+	
+	private static void readJsonObjectBody(IContext context, String body, IMendixObject target) throws Exception {
+		if (!body.matches("^\\s*\\{[\\s\\S]*"))
+			throw new IllegalArgumentException("Response body does not seem to be a valid JSON Object. A JSON object starts with '{' but found: " + body);
+		JsonDeserializer.readJsonDataIntoMendixObject(context, new JSONTokener(body).nextValue(), target, true);
+	}
+	
+	private static void storeReferableObjectInfo(IContext context, IMendixObject target, String url, String eTag) {
+		if (target != null && Core.isSubClassOf(ReferableObject.entityName, target.getType())) {
+			target.setValue(context, ReferableObject.MemberNames.URL.toString(), url);
+			target.setValue(context, ReferableObject.MemberNames.ETag.toString(), eTag);
+		}
+	}
+	
 	public static RequestResult request(final IContext context, HttpMethod method, String url, 
 			final IMendixObject source, final IMendixObject target, final boolean asFormData) throws Exception {
 		lastConsumeError.set(null);
@@ -483,7 +957,7 @@ public class RestConsumer {
 		else if (asFormData && !isFileSource)
 			requestHeaders.put(RestServices.HEADER_CONTENTTYPE, RestServices.CONTENTTYPE_FORMENCODED);
 		else if (data != null && data.length() != 0) {				
-			requestEntity = new StringRequestEntity(data.toString(4), RestServices.CONTENTTYPE_APPLICATIONJSON, RestServices.UTF8);
+			requestEntity = new StringRequestEntity(data.toString(), RestServices.CONTENTTYPE_APPLICATIONJSON, RestServices.UTF8);
 			if (RestServices.LOGCONSUME.isDebugEnabled()) {
 				RestServices.LOGCONSUME.debug("[Body JSON Data] " + data.toString());
 			}
@@ -497,13 +971,10 @@ public class RestConsumer {
 					if (isFileTarget)
 						Core.storeFileDocumentContent(context, target, stream);
 					else {
-						String body = IOUtils.toString(stream);
+						String body = readBodyAsString(stream);
 						bodyBuffer.append(body);
-						if (target != null){
-							if (!body.matches("^\\s*\\{[\\s\\S]*"))
-								throw new IllegalArgumentException("Response body does not seem to be a valid JSON Object. A JSON object starts with '{' but found: " + body);
-							JsonDeserializer.readJsonDataIntoMendixObject(context, new JSONTokener(body).nextValue(), target, true);
-						}
+						if (target != null)
+							readJsonObjectBody(context, body, target);
 					}
 					return true;
 				}
@@ -521,10 +992,7 @@ public class RestConsumer {
 		}
 		
 		response.setBody(bodyBuffer.toString());
-		if (target != null && Core.isSubClassOf(ReferableObject.entityName, target.getType())) {
-			target.setValue(context, ReferableObject.MemberNames.URL.toString(), url);
-			target.setValue(context, ReferableObject.MemberNames.ETag.toString(), response.getETag());
-		}
+		storeReferableObjectInfo(context, target, url, response.getETag());
 		
 		return response.asRequestResult(context);
 	}
@@ -742,14 +1210,12 @@ public class RestConsumer {
 		return res.asRequestResult(context);
 	}
 
+	/**
+	 * Idle connections are evicted by default, this method changes the interval and idle time used to evict them. 
+	 */
 	public static boolean startIdleConnectionMonitor(long interval, long maxIdleTime)
 	{
-		if (idleConnectionMonitorThread != null)
-			return false;
-		
-		idleConnectionMonitorThread = new IdleConnectionMonitorThread(connectionManager, interval, maxIdleTime);
-		idleConnectionMonitorThread.start();
-		
+		connectionManager.configureIdleConnectionMonitor(interval, maxIdleTime);
 		return true;
 	}
 }
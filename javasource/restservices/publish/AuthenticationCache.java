@@ -0,0 +1,166 @@
+package restservices.publish;
+
+import java.util.concurrent.TimeUnit;
+
+import restservices.RestServices;
+import system.proxies.User;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
+import com.google.common.base.Objects;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.Hashing;
+import com.mendix.core.Core;
+import com.mendix.core.CoreException;
+import com.mendix.systemwideinterfaces.core.IContext;
+import com.mendix.systemwideinterfaces.core.IMendixObject;
+import com.mendix.systemwideinterfaces.core.ISession;
+import com.mendix.systemwideinterfaces.core.IUser;
+
+/**
+ * Remembers the users of verified credentials for AUTHENTICATION_CACHE_TTL seconds, and keeps a session per user
+ * that is shared by the requests of that user. This way clients that send credentials with each request don't pay
+ * for a password check and a new session on each request.
+ *
+ * Only hashes of credentials are kept. Cached credentials are checked against the user on each use: they are dropped
+ * if the password of the user changed, or if the user was blocked or deactivated. A new session is started if the
+ * roles of the user changed.
+ */
+class AuthenticationCache {
+
+	private static class VerifiedUser {
+		final String username;
+		final Object passwordHash;
+
+		VerifiedUser(String username, Object passwordHash) {
+			this.username = username;
+			this.passwordHash = passwordHash;
+		}
+	}
+
+	private static final Cache<String, VerifiedUser> verifiedUsers = CacheBuilder.newBuilder()
+			.maximumSize(RestServices.AUTHENTICATION_CACHE_SIZE)
+			.expireAfterWrite(Math.max(0, RestServices.AUTHENTICATION_CACHE_TTL), TimeUnit.SECONDS)
+			.build();
+
+	private static final Cache<String, IUser> validUsers = CacheBuilder.newBuilder()
+			.maximumSize(RestServices.AUTHENTICATION_CACHE_SIZE)
+			.expireAfterWrite(Math.max(0, RestServices.AUTHENTICATION_CACHE_TTL), TimeUnit.SECONDS)
+			.build();
+
+	private static final Cache<String, ISession> sessions = CacheBuilder.newBuilder()
+			.maximumSize(RestServices.AUTHENTICATION_CACHE_SIZE)
+			.expireAfterAccess(Math.max(0, RestServices.AUTHENTICATION_CACHE_TTL), TimeUnit.SECONDS)
+			.build();
+
+	private AuthenticationCache() {
+	}
+
+	static boolean isEnabled() {
+		return RestServices.AUTHENTICATION_CACHE_TTL > 0;
+	}
+
+	/**
+	 * Returns the key under which the given credentials are cached
+	 */
+	static String createKey(String... credentials) {
+		return Hashing.sha256().hashString(Joiner.on('\u0000').useForNull("").join(credentials), Charsets.UTF_8).toString();
+	}
+
+	/**
+	 * Returns the user that was verified before using the credentials with the given key, or null if there is no such user,
+	 * or if the user changed in a way that requires verifying the credentials again.
+	 */
+	static IUser getVerifiedUser(String key) throws CoreException {
+		if (!isEnabled())
+			return null;
+
+		VerifiedUser verified = verifiedUsers.getIfPresent(key);
+		if (verified == null)
+			return null;
+
+		IContext context = Core.createSystemContext();
+		IUser user = Core.getUser(context, verified.username);
+		if (user == null || !isValid(context, user.getMendixObject()) || !Objects.equal(verified.passwordHash, getPasswordHash(context, user))) {
+			verifiedUsers.invalidate(key);
+			return null;
+		}
+
+		return user;
+	}
+
+	/**
+	 * Remembers the user of credentials that were just verified
+	 */
+	static void putVerifiedUser(String key, IUser user, boolean includePassword) {
+		if (!isEnabled())
+			return;
+
+		IContext context = Core.createSystemContext();
+		verifiedUsers.put(key, new VerifiedUser(user.getName(), includePassword ? getPasswordHash(context, user) : null));
+	}
+
+	/**
+	 * Returns the shared session of the user, or starts a new one if there is none, if it expired, or if the roles
+	 * of the user changed since it was started.
+	 */
+	static synchronized ISession getSession(IUser user) throws CoreException {
+		ISession session = sessions.getIfPresent(user.getName());
+		if (isUsable(session, user))
+			return session;
+
+		//replaced sessions are not logged out, as they might still be in use by other requests. They expire by themselves.
+		session = Core.initializeSession(user, null);
+		sessions.put(user.getName(), session);
+		return session;
+	}
+
+	/**
+	 * Returns the active, not blocked user with the given name, or null if there is no such user. Valid users are
+	 * remembered, so a user that is blocked or deactivated is rejected within AUTHENTICATION_CACHE_TTL seconds.
+	 */
+	static IUser getValidUser(String username) throws CoreException {
+		IUser user = isEnabled() ? validUsers.getIfPresent(username) : null;
+		if (user != null)
+			return user;
+
+		IContext context = Core.createSystemContext();
+		user = Core.getUser(context, username);
+		if (user == null || !isValid(context, user.getMendixObject()))
+			return null;
+
+		if (isEnabled())
+			validUsers.put(username, user);
+		return user;
+	}
+
+	/**
+	 * Returns the shared session of the user of the given (new) session. The given session becomes the shared session
+	 * if there is no usable shared session yet.
+	 */
+	static synchronized ISession shareSession(ISession session) {
+		IUser user = session.getUser();
+		ISession shared = sessions.getIfPresent(user.getName());
+		if (isUsable(shared, user))
+			return shared;
+
+		sessions.put(user.getName(), session);
+		return session;
+	}
+
+	private static boolean isUsable(ISession session, IUser user) {
+		return session != null
+			&& Core.getActiveSession(session.getId()) != null
+			&& session.getUser().getUserRoleNames().equals(user.getUserRoleNames());
+	}
+
+	private static boolean isValid(IContext context, IMendixObject user) {
+		return Boolean.TRUE.equals(user.getValue(context, User.MemberNames.Active.toString()))
+			&& !Boolean.TRUE.equals(user.getValue(context, User.MemberNames.Blocked.toString()));
+	}
+
+	private static Object getPasswordHash(IContext context, IUser user) {
+		return user.getMendixObject().getValue(context, User.MemberNames.Password.toString());
+	}
+}
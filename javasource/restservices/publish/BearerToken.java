@@ -0,0 +1,159 @@
+package restservices.publish;
+
+import java.io.UnsupportedEncodingException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import restservices.RestServices;
+
+import com.google.common.base.Preconditions;
+import com.google.common.io.BaseEncoding;
+import com.mendix.thirdparty.org.json.JSONArray;
+import com.mendix.thirdparty.org.json.JSONException;
+import com.mendix.thirdparty.org.json.JSONObject;
+
+/**
+ * Bearer tokens are JSON Web Tokens that are signed with HMAC SHA-256 using RestServices.BEARER_TOKEN_SECRET. Tokens
+ * contain the name of the user ('sub'), the time until which they are valid ('exp', in seconds since epoch) and
+ * optionally the roles that the token may be used for ('roles'). Tokens are verified without accessing the database;
+ * the user of a valid token is still checked to be active and not blocked, at most AUTHENTICATION_CACHE_TTL seconds ago.
+ *
+ * The roles of a token only restrict which services it can call: the requests of a token run with all roles of the user.
+ */
+public class BearerToken {
+
+	private static final String ALGORITHM = "HmacSHA256";
+	private static final String HEADER = new JSONObject().put("alg", "HS256").put("typ", "JWT").toString();
+	private static final String CLAIM_USER = "sub";
+	private static final String CLAIM_EXPIRES = "exp";
+	private static final String CLAIM_ROLES = "roles";
+	private static final BaseEncoding BASE64URL = BaseEncoding.base64Url().omitPadding();
+
+	public static class Claims {
+		private final String username;
+		private final Set<String> roles;
+
+		Claims(String username, Set<String> roles) {
+			this.username = username;
+			this.roles = roles;
+		}
+
+		public String getUsername() {
+			return username;
+		}
+
+		/**
+		 * Returns whether the token can be used for services that require the given role. Tokens without roles can be
+		 * used for all roles of the user.
+		 */
+		public boolean allowsRole(String role) {
+			return roles == null || roles.contains(role);
+		}
+	}
+
+	private BearerToken() {
+	}
+
+	static boolean isEnabled() {
+		return RestServices.BEARER_TOKEN_SECRET != null && !RestServices.BEARER_TOKEN_SECRET.isEmpty();
+	}
+
+	/**
+	 * Creates a token for the given user, that is valid for the given amount of seconds.
+	 * @param roles the roles the token can be used for, or null if the token can be used for all roles of the user
+	 */
+	public static String create(String username, Collection<String> roles, long validity) {
+		Preconditions.checkNotNull(username, "username");
+		Preconditions.checkState(isEnabled(), "No bearer token secret has been set");
+
+		JSONObject claims = new JSONObject()
+			.put(CLAIM_USER, username)
+			.put(CLAIM_EXPIRES, System.currentTimeMillis() / 1000 + validity);
+		if (roles != null)
+			claims.put(CLAIM_ROLES, new JSONArray(roles));
+
+		String content = encode(HEADER) + "." + encode(claims.toString());
+		return content + "." + BASE64URL.encode(sign(content));
+	}
+
+	/**
+	 * Returns the claims of the token, or null if the token is malformed, has an invalid signature or has expired.
+	 */
+	public static Claims verify(String token) {
+		if (!isEnabled())
+			return null;
+
+		String[] parts = token.trim().split("\\.", -1);
+		if (parts.length != 3)
+			return null;
+
+		try {
+			if (!MessageDigest.isEqual(sign(parts[0] + "." + parts[1]), BASE64URL.decode(parts[2])))
+				return null;
+
+			//the signature matches, but the header should be checked as well; tokens without signature ('alg: none') are never accepted
+			if (!"HS256".equals(new JSONObject(decode(parts[0])).optString("alg")))
+				return null;
+
+			JSONObject claims = new JSONObject(decode(parts[1]));
+			if (!claims.has(CLAIM_EXPIRES) || claims.getLong(CLAIM_EXPIRES) * 1000 < System.currentTimeMillis())
+				return null;
+
+			String username = claims.optString(CLAIM_USER, null);
+			if (username == null || username.isEmpty())
+				return null;
+
+			Set<String> roles = null;
+			JSONArray rolesClaim = claims.optJSONArray(CLAIM_ROLES);
+			if (rolesClaim != null) {
+				roles = new HashSet<String>();
+				for(int i = 0; i < rolesClaim.length(); i++)
+					roles.add(rolesClaim.getString(i));
+			}
+
+			return new Claims(username, roles);
+		}
+		catch (IllegalArgumentException e) { //invalid base64
+			return null;
+		}
+		catch (JSONException e) {
+			return null;
+		}
+	}
+
+	private static byte[] sign(String content) {
+		try {
+			Mac mac = Mac.getInstance(ALGORITHM);
+			mac.init(new SecretKeySpec(RestServices.BEARER_TOKEN_SECRET.getBytes(RestServices.UTF8), ALGORITHM));
+			return mac.doFinal(content.getBytes(RestServices.UTF8));
+		}
+		catch (GeneralSecurityException e) {
+			throw new IllegalStateException("Failed to sign bearer token: " + e.getMessage(), e);
+		}
+		catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static String encode(String json) {
+		try {
+			return BASE64URL.encode(json.getBytes(RestServices.UTF8));
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static String decode(String base64) {
+		try {
+			return new String(BASE64URL.decode(base64), RestServices.UTF8);
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
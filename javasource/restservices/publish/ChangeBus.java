@@ -0,0 +1,26 @@
+package restservices.publish;
+
+/**
+ * Exchanges published changes between the nodes of a cluster, so that feed consumers receive the changes of a service
+ * regardless of the node they are connected to. Set RestServices.CHANGE_BUS to use an implementation.
+ *
+ * Implementations should deliver changes to the listeners of all nodes, including the node that published the change.
+ * Changes are published by the thread that stored them, so publish should not block. Changes do not need to be delivered
+ * in order, and lost changes are eventually read from the change log.
+ */
+public interface ChangeBus {
+
+	interface Listener {
+		/**
+		 * @param origin the id of the node that published the change
+		 * @param key the key of the changed object
+		 */
+		void onChange(String origin, long sequenceNr, String key, String json);
+	}
+
+	void publish(String service, String origin, long sequenceNr, String key, String json);
+
+	void subscribe(String service, Listener listener);
+
+	void unsubscribe(String service, Listener listener);
+}
@@ -1,74 +1,269 @@
 package restservices.publish;
 
 import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.servlet.AsyncContext;
-import javax.servlet.ServletOutputStream;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.mendix.thirdparty.org.json.JSONObject;
 
 import restservices.RestServices;
-import restservices.util.RestServiceRuntimeException;
+import restservices.util.RawJson;
+
+/**
+ * A connected consumer of a changes feed. Changes are queued by the publishing thread, and written by a shared pool of
+ * writer threads; all changes that are queued by then are sent with a single flush. The response is sent using non-blocking
+ * IO, so a slow consumer never blocks the writers. Consumers that fall too far behind are asked to reconnect.
+ * Idle consumers receive a heartbeat every FEED_HEARTBEAT_INTERVAL seconds.
+ */
+class ChangeLogConsumer implements NonBlockingOutput.Callback {
+
+	private static final ExecutorService writers = Executors.newFixedThreadPool(RestServices.FEED_WRITER_THREADS, new ThreadFactoryBuilder()
+			.setNameFormat("RestServices feed writer #%d")
+			.setDaemon(true)
+			.build());
+
+	private static final ScheduledExecutorService heartbeats = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+			.setNameFormat("RestServices feed heartbeat")
+			.setDaemon(true)
+			.build());
+
+	private static class Change {
+		final long sequenceNr;
+		final RawJson json;
+
+		Change(long sequenceNr, RawJson json) {
+			this.sequenceNr = sequenceNr;
+			this.json = json;
+		}
+	}
 
-class ChangeLogConsumer {
-	
 	static long nextId = 1L;
-	private final String id = "FeedRequest#" + nextId++;  
-	
-	final private LinkedBlockingQueue<JSONObject> pendingInstructions = new LinkedBlockingQueue<JSONObject>(RestServices.MAXPOLLQUEUE_LENGTH);
-	
+	private final String id = "FeedRequest#" + nextId++;
+
+	final private LinkedBlockingQueue<Change> pendingChanges = new LinkedBlockingQueue<Change>(RestServices.MAXPOLLQUEUE_LENGTH);
+	private final AtomicBoolean writeScheduled = new AtomicBoolean(false);
+	private final AtomicBoolean completed = new AtomicBoolean(false);
+
 	final private AsyncContext continuation;
+	final private OutputStream out;
+	final private NonBlockingOutput output;
+	final private FeedFormat format;
+	private final ScheduledFuture<?> heartbeat;
 	private boolean completeAfterFirst;
 	private ChangeLogManager	changeLogManager;
-	
-	public ChangeLogConsumer(AsyncContext asyncContext, boolean completeAfterFirst, ChangeLogManager changeLogManager) {
+	private volatile boolean closed = false;
+	private long lastSequenceNr; //the last change that was written, guarded by 'this'
+	private long lastWriteTime = System.currentTimeMillis(); //guarded by 'this'
+
+	/**
+	 * @param since the sequence number of the last change that was written to the response already
+	 */
+	public ChangeLogConsumer(AsyncContext asyncContext, RestServiceRequest rsr, FeedFormat format, long since, boolean completeAfterFirst, ChangeLogManager changeLogManager) throws IOException {
 		this.continuation = asyncContext;
+		this.out = rsr.getOutputStream();
+		this.format = format;
+		this.lastSequenceNr = since;
 		this.completeAfterFirst = completeAfterFirst;
 		this.changeLogManager = changeLogManager;
+
+		this.output = new NonBlockingOutput(asyncContext.getResponse().getOutputStream(), this);
+		rsr.redirectOutput(output);
+		output.start();
+
+		asyncContext.addListener(new AsyncListener() {
+
+			@Override
+			public void onTimeout(AsyncEvent event) throws IOException {
+				complete();
+				completeRequest(); //don't wait for a client that doesn't read
+			}
+
+			@Override
+			public void onError(AsyncEvent event) throws IOException {
+				outputFailed(event.getThrowable());
+			}
+
+			@Override
+			public void onStartAsync(AsyncEvent event) throws IOException {
+			}
+
+			@Override
+			public void onComplete(AsyncEvent event) throws IOException {
+			}
+		});
+
+		out.flush(); //send the changes that were written before this consumer was registered
+		
+		this.heartbeat = RestServices.FEED_HEARTBEAT_INTERVAL <= 0 ? null : heartbeats.scheduleWithFixedDelay(new Runnable() {
+
+			@Override
+			public void run() {
+				writeHeartbeat();
+			}
+		}, RestServices.FEED_HEARTBEAT_INTERVAL, RestServices.FEED_HEARTBEAT_INTERVAL, TimeUnit.SECONDS);
+		if (closed && heartbeat != null) //closed in the mean time
+			heartbeat.cancel(false);
 	}
 
-	public void addInstruction(JSONObject json) 
+	/**
+	 * Queues the change to be written to this consumer. Never blocks.
+	 */
+	public void addChange(long sequenceNr, RawJson json)
 	{
+		if (closed)
+			return;
+
 		if (RestServices.LOGPUBLISH.isDebugEnabled())
 			RestServices.LOGPUBLISH.debug(this.id + " received instruction " + json.toString());
-		
-		if (!pendingInstructions.offer(json))
-			throw new RestServiceRuntimeException(this.id + " dropped message; maximum queue size exceeded");
-			
-		writePendingChanges();
+
+		if (!pendingChanges.offer(new Change(sequenceNr, json))) {
+			requestReconnect();
+			return;
+		}
+
+		if (writeScheduled.compareAndSet(false, true)) {
+			writers.execute(new Runnable() {
+
+				@Override
+				public void run() {
+					writePendingChanges();
+				}
+			});
+		}
 	}
 
-	private void writePendingChanges() {
-		//MWE: hmm... printwriter doesn't do the job!
-		//PrintWriter writer = new PrintWriter(continuation.getServletResponse().getOutputStream());
-		JSONObject instr = null;
-		
+	private synchronized void writePendingChanges() {
+		writeScheduled.set(false); //changes queued from now on need another run
+		if (closed)
+			return;
+
+		Change change = null;
+		int written = 0;
+
 		try {
-			
-			while(null != (instr = pendingInstructions.poll())) { 
-				RestServices.LOGPUBLISH.debug("Publishing " + instr);
-				ServletOutputStream out = continuation.getResponse().getOutputStream();
-				out.write("\r\n".getBytes(RestServices.UTF8));
-				out.write(instr.toString().getBytes(RestServices.UTF8));
+			while(null != (change = pendingChanges.poll())) {
+				if (RestServices.LOGPUBLISH.isDebugEnabled())
+					RestServices.LOGPUBLISH.debug("Publishing " + change.json);
+				format.writeChange(out, change.sequenceNr, change.json);
+				lastSequenceNr = change.sequenceNr;
+				written += 1;
 			}
-			continuation.getResponse().flushBuffer();
-			
+
+			if (written == 0)
+				return;
+
+			out.flush(); //flushes the compressor as well, so that the client can process the changes right away
+			lastWriteTime = System.currentTimeMillis();
+
 			if (completeAfterFirst) //return ASAP
 				this.complete();
-		} catch (IOException e) {
-			throw new RestServiceRuntimeException("Failed to write changes to" + id, e);
+			else if (output.getPendingSize() > RestServices.MAX_FEED_BUFFER_SIZE)
+				requestReconnect();
+		} catch (Exception e) {
+			RestServices.LOGPUBLISH.warn("Failed to write changes to " + id + ": " + e.getMessage());
+			outputFailed(e);
+		}
+	}
+
+	private synchronized void writeHeartbeat() {
+		if (closed || System.currentTimeMillis() - lastWriteTime < RestServices.FEED_HEARTBEAT_INTERVAL * 1000L)
+			return;
+
+		try {
+			format.writeHeartbeat(out);
+			out.flush();
+			lastWriteTime = System.currentTimeMillis();
+
+			if (output.getPendingSize() > RestServices.MAX_FEED_BUFFER_SIZE)
+				requestReconnect();
+		}
+		catch (Exception e) {
+			RestServices.LOGPUBLISH.warn("Failed to write heartbeat to " + id + ": " + e.getMessage());
+			outputFailed(e);
+		}
+	}
+
+	/**
+	 * Stops this consumer, and asks the client to reconnect starting from the last change that was written to it.
+	 * Changes that were not written yet are discarded, the client will receive them after reconnecting.
+	 */
+	synchronized void requestReconnect() {
+		if (closed)
+			return;
+
+		changeLogManager.unregisterConsumer(this);
+		pendingChanges.clear();
+
+		RestServices.LOGPUBLISH.info(id + " is asked to reconnect since " + lastSequenceNr);
+		try {
+			format.writeInstruction(out, RestServices.CHANGE_RESYNC, new RawJson(new JSONObject()
+				.put(RestServices.CHANGE_RESYNC, true)
+				.put(RestServices.PARAM_SINCE, lastSequenceNr)
+				.toString()));
+		}
+		catch (Exception e) {
+			RestServices.LOGPUBLISH.warn("Failed to write reconnect instruction to " + id + ": " + e.getMessage());
+		}
+		complete();
+	}
+
+	/**
+	 * Finishes the response body. The request is completed once all output is sent.
+	 */
+	synchronized void closeOutput() {
+		if (closed)
+			return;
+		closed = true;
+		if (heartbeat != null)
+			heartbeat.cancel(false);
+		try {
+			out.close();
+		}
+		catch (Throwable e) {
+			RestServices.LOGPUBLISH.warn("Failed to close output of " + id + ": " + e.getMessage());
+			completeRequest();
 		}
 	}
 
 	void complete() {
+		closeOutput();
+		changeLogManager.unregisterConsumer(this);
+	}
+
+	private void completeRequest() {
+		if (!completed.compareAndSet(false, true))
+			return;
 		try {
-			this.continuation.complete(); 
+			this.continuation.complete();
 		}
 		catch (Throwable e) {
 			RestServices.LOGPUBLISH.warn("Failed to complete " + id + ": " + e.getMessage(), e);
 		}
+	}
+
+	@Override
+	public void outputClosed() {
+		completeRequest();
+	}
+
+	@Override
+	public void outputFailed(Throwable e) {
+		RestServices.LOGPUBLISH.debug(id + " disconnected: " + (e == null ? "" : e.getMessage()));
+		closed = true;
+		if (heartbeat != null)
+			heartbeat.cancel(false);
 		changeLogManager.unregisterConsumer(this);
+		completeRequest();
 	}
 }
-
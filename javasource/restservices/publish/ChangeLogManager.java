@@ -1,9 +1,23 @@
 package restservices.publish;
 
 import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.UUID;
 import java.util.Vector;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import javax.servlet.AsyncContext;
 
@@ -15,14 +29,21 @@ import restservices.proxies.ChangeItem;
 import restservices.proxies.ChangeLog;
 import restservices.proxies.DataServiceDefinition;
 import restservices.publish.RestPublishException.RestExceptionType;
+import restservices.util.CommitBatch;
 import restservices.util.JSONSchemaBuilder;
+import restservices.util.ParallelBatch;
+import restservices.util.ProgressLogger;
+import restservices.util.RawJson;
 import restservices.util.RestServiceRuntimeException;
 import restservices.util.Utils;
 
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.Striped;
 import com.mendix.core.Core;
 import com.mendix.core.CoreException;
 import com.mendix.m2ee.api.IMxRuntimeResponse;
 import com.mendix.systemwideinterfaces.core.IContext;
+import com.mendix.systemwideinterfaces.core.IMendixIdentifier;
 import com.mendix.systemwideinterfaces.core.IMendixObject;
 import com.mendix.systemwideinterfaces.core.meta.IMetaObject;
 
@@ -35,19 +56,205 @@ public class ChangeLogManager {
 	private final List<ChangeLogConsumer> consumers = new Vector<ChangeLogConsumer>(); 
 	private volatile ChangeLog changeLog;
 	private volatile boolean isRebuildingChangeLog = false;
+	private final PublishedObjectCache objectCache = new PublishedObjectCache(RestServices.PUBLISHED_OBJECT_CACHE_SIZE);
+	private volatile long lastStoredSequenceNr = -1;
+	
+	//Range of reserved sequence numbers, guarded by getNextSequenceNr
+	private long nextSequenceNr = 1;
+	private long reservedSequenceNr = 0;
+	
+	/*
+	 * Updates for different keys are processed concurrently. To make sure consumers never skip a change, changes are 
+	 * published in order of their sequence numbers: the sequencer tracks the sequence numbers that are handed out but 
+	 * not yet stored, and stored changes are only published once all lower numbers are stored (or failed). Guarded by 'this'. 
+	 */
+	private final Striped<Lock> keyLocks = Striped.lock(64);
+	private final ChangeSequencer sequencer;
+	private volatile RecentChanges recentChanges = new RecentChanges(0, 0);
+	
+	/*
+	 * Changes that are waiting to be published, if write-behind publishing is enabled. 
+	 * The queued value is the id of the updated object, or null for deletes. 
+	 */
+	private final WriteBehindQueue<QueuedChange> writeBehindQueue;
+	private static final int MAX_QUEUED_CHANGE_RETRIES = 5;
+	
+	/*
+	 * While rebuilding, the new state is written to a shadow change log, while the current change log keeps serving requests. 
+	 * Keys that are updated in the mean time are reprocessed before the shadow replaces the current change log. Updates hold 
+	 * the read lock, so that no update is missed while swapping. 
+	 */
+	private volatile ChangeLog shadowChangeLog = null;
+	private final Set<String> keysChangedDuringRebuild = Sets.newConcurrentHashSet();
+	private final ReadWriteLock swapLock = new ReentrantReadWriteLock();
+	private static final int REBUILD_CHUNK_SIZE = 100; //objects that are republished or swept with a single query per change log
+	
+	/*
+	 * Cluster fan-out: changes of other nodes are received through the change bus, or by tailing the change log. 
+	 * Fan-out requires cluster safe sequence numbers, so that the sequencer can publish the changes of all nodes in order. 
+	 */
+	private final boolean clusterSafe = RestServices.CLUSTER_SAFE_PUBLISHING || RestServices.CLUSTER_FANOUT;
+	private final String nodeId = UUID.randomUUID().toString();
+	private ChangeBus changeBus = null;
+	private ChangeBus.Listener changeBusListener = null;
+	private ChangeLogTailer tailer = null;
 	
 	public ChangeLogManager(DataService service, IContext context) throws CoreException {
 		this.service = service;
+		this.writeBehindQueue = !RestServices.WRITE_BEHIND_PUBLISHING ? null : new WriteBehindQueue<QueuedChange>(
+				service.getRelativeUrl(), RestServices.WRITE_BEHIND_THREADS, RestServices.MAX_WRITE_BEHIND_QUEUE_LENGTH, RestServices.WRITE_BEHIND_DELAY, 
+				new WriteBehindQueue.Processor<QueuedChange>() {
+
+					@Override
+					public boolean process(String key, QueuedChange change, int attempt) throws Exception {
+						return processQueuedChange(key, change, attempt);
+					}
+				});
+		
 		if (service.def.getEnableChangeLog() && service.def.getEnableGet()) {
 			changeLog = XPath.create(context, ChangeLog.class)
 				.findOrCreate(ChangeLog.MemberNames.ChangeLog_ServiceDefinition, service.def);
+			recentChanges = createRecentChanges(changeLog.getSequenceNr());
+			sequencer = new ChangeSequencer(getLatestStoredSequenceNr(context), RestServices.CLUSTER_FANOUT);
 			
+			if (RestServices.CLUSTER_FANOUT)
+				startClusterFanout();
+			
+			//last, since the rebuild runs in the background and uses all fields
 			if (!calculateServiceConfigurationHash(service.def).equals(changeLog.get_ConfigurationHash())) 
-				rebuildChangeLog(context);
+				startRebuildChangeLog(context);
+		}
+		else
+			sequencer = new ChangeSequencer(0, false);
+	}
+	
+	/**
+	 * Returns the highest sequence number of the changes that are stored in the change log
+	 */
+	long getLatestStoredSequenceNr(IContext context) throws CoreException {
+		ChangeItem latest = XPath.create(context, ChangeItem.class)
+				.eq(ChangeItem.MemberNames.ChangeItem_ChangeLog, getChangeLog())
+				.addSortingDesc(ChangeItem.MemberNames.SequenceNr)
+				.first();
+		return latest == null ? 0 : latest.getSequenceNr();
+	}
+	
+	/**
+	 * Changes of other nodes are not part of the recent changes, so these cannot be used in a cluster
+	 */
+	private RecentChanges createRecentChanges(long publishedSequenceNr) {
+		return new RecentChanges(clusterSafe ? 0 : RestServices.RECENT_CHANGES_BUFFER_SIZE, publishedSequenceNr);
+	}
+	
+	private void startClusterFanout() throws CoreException {
+		if (RestServices.CHANGE_BUS != null) {
+			changeBus = RestServices.CHANGE_BUS;
+			changeBusListener = new ChangeBus.Listener() {
+
+				@Override
+				public void onChange(String origin, long sequenceNr, String key, String json) {
+					if (!nodeId.equals(origin))
+						publishRemoteUpdate(sequenceNr, key, new RawJson(json));
+				}
+			};
+			changeBus.subscribe(service.getRelativeUrl(), changeBusListener);
+		}
+		
+		//with a change bus, the change log is only read to find changes for which no message was received
+		tailer = new ChangeLogTailer(this, service.getRelativeUrl(), changeBus != null);
+		tailer.start();
+	}
+	
+	/**
+	 * Publishes a change that was received from the change bus to the consumers connected to this node
+	 */
+	private void publishRemoteUpdate(long sequenceNr, String key, RawJson json) {
+		objectCache.invalidate(key);
+		
+		synchronized(this) {
+			lastStoredSequenceNr = sequenceNr; //invalidates objects that are being retrieved for the cache
+			publishInOrder(sequencer.receive(sequenceNr, json));
+		}
+	}
+	
+	/**
+	 * Publishes a change that was found in the change log to the consumers connected to this node, if the change was stored by another node
+	 */
+	void publishUpdateFromChangeLog(long sequenceNr, ChangeItem item) {
+		synchronized(this) {
+			if (sequencer.isKnown(sequenceNr))
+				return;
+		}
+		
+		objectCache.invalidate(item.getKey());
+		RawJson json = writeObjectStateToJson(item);
+		
+		synchronized(this) {
+			lastStoredSequenceNr = sequenceNr;
+			publishInOrder(sequencer.receive(sequenceNr, json));
+		}
+	}
+	
+	/**
+	 * Returns the highest sequence number up to which all changes are stored or rolled back. 
+	 * A read of the change log that starts after this call finds all stored changes up to this number.
+	 */
+	synchronized long getResolvedSequenceNr() {
+		return sequencer.getResolvedSequenceNr();
+	}
+	
+	/**
+	 * Returns the highest sequence number up to which all stored changes are published or awaiting publication 
+	 */
+	synchronized long getConfirmedSequenceNr() {
+		return sequencer.getConfirmedSequenceNr();
+	}
+	
+	/**
+	 * Confirms that all changes up to the given sequence number were read from the change log, so that the numbers 
+	 * that were not found are skipped
+	 */
+	synchronized void confirmChangeLogRead(long sequenceNr) {
+		publishInOrder(sequencer.confirm(sequenceNr));
+	}
+	
+	/**
+	 * Returns whether stored changes wait for changes of other nodes that were not received yet
+	 */
+	synchronized boolean isAwaitingChanges() {
+		return sequencer.isWaiting();
+	}
+	
+	/**
+	 * Rebuilds the change log. If there are published objects, the rebuild runs in the background while they are still served. 
+	 */
+	private void startRebuildChangeLog(IContext context) throws CoreException {
+		boolean isEmpty = XPath.create(context, ChangeItem.class)
+				.eq(ChangeItem.MemberNames.ChangeItem_ChangeLog, changeLog)
+				.first() == null;
+		
+		if (isEmpty) {
+			rebuildChangeLog(context);
+			return;
 		}
+		
+		Thread rebuilder = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					rebuildChangeLog(Core.createSystemContext());
+				}
+				catch (Exception e) {
+					RestServices.LOGPUBLISH.error(service.getRelativeUrl() + ": Failed to rebuild change log: " + e.getMessage(), e);
+				}
+			}
+		}, "RestServices rebuild " + service.getRelativeUrl());
+		rebuilder.setDaemon(true);
+		rebuilder.start();
 	}
 
-	JSONObject writeObjectStateToJson(ChangeItem state){
+	RawJson writeObjectStateToJson(ChangeItem state){
 		JSONObject res = new JSONObject();
 		res
 			.put(RestServices.CHANGE_KEY, state.getKey())
@@ -56,48 +263,240 @@ public class ChangeLogManager {
 			.put(RestServices.CHANGE_ETAG, state.getEtag())
 			.put(RestServices.CHANGE_DELETED, state.getIsDeleted());
 		
-		if (!state.getIsDeleted())
-			res.put(RestServices.CHANGE_DATA, new JSONObject(state.getJson()));
+		if (state.getIsDeleted())
+			return new RawJson(res.toString());
 		
-		return res;
+		//Append the stored data as is, instead of parsing it into the envelope
+		String envelope = res.toString();
+		return new RawJson(new StringBuilder(envelope.length() + state.getJson().length() + 10)
+			.append(envelope, 0, envelope.length() - 1)
+			.append(',').append(JSONObject.quote(RestServices.CHANGE_DATA)).append(':')
+			.append(state.getJson())
+			.append('}')
+			.toString());
 	}
 
+	/**
+	 * Stores a new state of the object with a new sequence number. 
+	 * @param publish whether the state is published to the cache and consumers, false for changes to the shadow change log
+	 */
 	void storeUpdate(ChangeItem objectState,
-			String eTag, String jsonString, boolean deleted) throws Exception {
+			String eTag, String jsonString, boolean deleted, boolean publish) throws Exception {
+		
+		if (clusterSafe) {
+			storeClusterSafeUpdate(objectState, eTag, jsonString, deleted, publish);
+			return;
+		}
 		
 		/* store the update*/
 		long rev = getNextSequenceNr();
+		RawJson published = null;
 		
-		if (RestServices.LOGPUBLISH.isDebugEnabled())
-			RestServices.LOGPUBLISH.debug("Updated: " + objectState.getKey() + " to revision " + rev);
+		try {
+			if (RestServices.LOGPUBLISH.isDebugEnabled())
+				RestServices.LOGPUBLISH.debug("Updated: " + objectState.getKey() + " to revision " + rev);
+			
+			objectState.setEtag(eTag);
+			objectState.setIsDeleted(deleted);
+			objectState.setJson(deleted ? "" : jsonString);
+			objectState.setSequenceNr(rev);
+			objectState.set_IsDirty(false);
+			objectState.commit();
+			
+			if (publish) {
+				lastStoredSequenceNr = rev;
+				objectCache.put(objectState.getKey(), new PublishedObjectCache.Entry(rev, eTag, jsonString, deleted));
+				
+				published = writeObjectStateToJson(objectState);
+			}
+		}
+		finally {
+			completeSequenceNr(rev, objectState.getKey(), published);
+		}
+	}
+	
+	/**
+	 * Stores an update if other nodes publish to the same change log. The sequence number is taken from the change log in 
+	 * the transaction that stores the change item, so that changes of all nodes are committed in order of sequence number, 
+	 * and a consumer that has seen a change never misses a change with a lower number that is committed later. 
+	 * New change items are first stored without sequence number, so that they can be updated in that transaction. 
+	 */
+	private void storeClusterSafeUpdate(ChangeItem objectState,
+			String eTag, String jsonString, boolean deleted, boolean publish) throws Exception {
+		
+		boolean isNew = objectState.getMendixObject().isNew();
+		if (isNew) {
+			objectState.setSequenceNr(0);
+			objectState.setIsDeleted(true);
+			objectState.setJson("");
+			objectState.set_IsDirty(true);
+			objectState.commit();
+		}
+		long previousRev = objectState.getSequenceNr();
 		
 		objectState.setEtag(eTag);
 		objectState.setIsDeleted(deleted);
 		objectState.setJson(deleted ? "" : jsonString);
-		objectState.setSequenceNr(rev);
 		objectState.set_IsDirty(false);
-		objectState.commit();
 		
-		publishUpdate(objectState);
+		final AtomicReference<Long> assigned = new AtomicReference<Long>();
+		RawJson published = null;
+		
+		try {
+			long rev = ClusterSafeStore.storeWithNextSequenceNr(getChangeLog(), objectState, previousRev, new ClusterSafeStore.SequenceNrListener() {
+	
+				@Override
+				public void assigned(long sequenceNr) {
+					synchronized(ChangeLogManager.this) {
+						sequencer.assign(sequenceNr);
+					}
+					assigned.set(sequenceNr);
+				}
+	
+				@Override
+				public void released(long sequenceNr) {
+					assigned.set(null);
+					completeSequenceNr(sequenceNr, null, null);
+				}
+			});
+			
+			if (rev == -1)
+				throw new ConcurrentUpdateException(objectState.getKey());
+			
+			if (RestServices.LOGPUBLISH.isDebugEnabled())
+				RestServices.LOGPUBLISH.debug("Updated: " + objectState.getKey() + " to revision " + rev);
+			
+			objectState.setSequenceNr(rev);
+			if (isNew)
+				removeDuplicateChangeItems(objectState);
+			
+			if (publish) {
+				lastStoredSequenceNr = rev;
+				objectCache.put(objectState.getKey(), new PublishedObjectCache.Entry(rev, eTag, jsonString, deleted));
+				
+				published = writeObjectStateToJson(objectState);
+			}
+		}
+		finally {
+			if (assigned.get() != null)
+				completeSequenceNr(assigned.get(), objectState.getKey(), published);
+		}
 	}
+	
+	/**
+	 * Thrown if a change item was updated by another node while processing an update
+	 */
+	private static class ConcurrentUpdateException extends Exception {
+		private static final long serialVersionUID = 1L;
 
+		ConcurrentUpdateException(String key) {
+			super("Change item '" + key + "' was updated concurrently");
+		}
+	}
+	
+	/**
+	 * Other nodes might have created a change item for the same key at the same time. The item with the latest change 
+	 * is kept, so that all nodes agree on the item to keep. 
+	 */
+	private void removeDuplicateChangeItems(ChangeItem objectState) throws CoreException {
+		List<ChangeItem> items = XPath.create(objectState.getContext(), ChangeItem.class)
+				.eq(ChangeItem.MemberNames.Key, objectState.getKey())
+				.eq(ChangeItem.MemberNames.ChangeItem_ChangeLog, objectState.getChangeItem_ChangeLog())
+				.addSortingDesc(ChangeItem.MemberNames.SequenceNr)
+				.all();
+		
+		for(int i = 1; i < items.size(); i++) {
+			RestServices.LOGPUBLISH.info("Removing duplicate change item for '" + objectState.getKey() + "', revision " + items.get(i).getSequenceNr());
+			Core.delete(objectState.getContext(), items.get(i).getMendixObject());
+		}
+	}
+	
+	/**
+	 * Marks the sequence number as stored, and publishes all stored changes that are no longer preceded by pending changes. 
+	 * The change is sent to the other nodes after releasing the lock, so that a change bus never blocks publishing. 
+	 * @param json the change to publish, or null if the change failed to store
+	 */
+	private void completeSequenceNr(long seq, String key, RawJson json) {
+		synchronized(this) {
+			publishInOrder(sequencer.complete(seq, json));
+		}
+		
+		if (changeBus != null && json != null)
+			changeBus.publish(service.getRelativeUrl(), nodeId, seq, key, json.toString());
+	}
+	
+	private void publishInOrder(SortedMap<Long, RawJson> changes) {
+		for(Map.Entry<Long, RawJson> change : changes.entrySet()) {
+			recentChanges.add(change.getKey(), change.getValue());
+			publishUpdate(change.getKey(), change.getValue());
+		}
+	}
+	
+	/**
+	 * Returns the highest sequence number up to which all changes are stored. 
+	 * Changes above it might be stored, but are not published yet. 
+	 */
+	private synchronized long getPublishedSequenceNr() {
+		return sequencer.getStoredSequenceNr();
+	}
+	
+	/**
+	 * Returns the published state of the object with the given key, or null if it was never published. 
+	 * Recently requested objects are served from memory. 
+	 */
+	PublishedObjectCache.Entry getPublishedObject(IContext context, String key) throws CoreException {
+		PublishedObjectCache.Entry cached = objectCache.get(key);
+		if (cached != null)
+			return cached;
+		
+		long storedBefore = lastStoredSequenceNr;
+		ChangeLog log = getChangeLog();
+		ChangeItem item = XPath.create(context, ChangeItem.class)
+				.eq(ChangeItem.MemberNames.Key, key)
+				.eq(ChangeItem.MemberNames.ChangeItem_ChangeLog, log)
+				.first();
+		
+		if (item == null)
+			return null;
+		
+		PublishedObjectCache.Entry entry = new PublishedObjectCache.Entry(item.getSequenceNr(), item.getEtag(), item.getJson(), item.getIsDeleted() || item.get_IsDirty());
+		
+		//Only cache if no update was stored (or the change log was replaced) in the mean time, the retrieved state might be outdated already
+		if (!item.get_IsDirty() && storedBefore == lastStoredSequenceNr && log == getChangeLog())
+			objectCache.put(key, entry);
+		
+		return entry;
+	}
+
+	/**
+	 * Writes all changes after 'since', up to the published sequence number, so that changes which are stored 
+	 * but preceded by pending changes are left to the consumers. 
+	 * @param format the format of the changes feed, or null to write the changes as list
+	 */
 	private ChangeItem writeChanges(final RestServiceRequest rsr, IContext c,
-			long since) throws CoreException {
+			long since, final FeedFormat format) throws CoreException {
 		if (since < 0)
 			throw new IllegalArgumentException("Since parameter should be positive");
 		
 		final AtomicReference<ChangeItem> lastWrittenRevision = new AtomicReference<ChangeItem>();
 		
-		XPath.create(c, ChangeItem.class)
+		XPath<ChangeItem> xp = XPath.create(c, ChangeItem.class)
 			.eq(ChangeItem.MemberNames.ChangeItem_ChangeLog, this.getChangeLog())
-			.compare(ChangeItem.MemberNames.SequenceNr, ">", since)
-			.addSortingAsc(ChangeItem.MemberNames.SequenceNr)
-			.batch(RestServices.BATCHSIZE, new IBatchProcessor<ChangeItem>() {
+			.compare(ChangeItem.MemberNames.SequenceNr, ">", since);
+		
+		long until = getPublishedSequenceNr();
+		if (until != Long.MAX_VALUE)
+			xp.compare(ChangeItem.MemberNames.SequenceNr, "<=", until);
+		
+		xp.batch(RestServices.BATCHSIZE, ChangeItem.MemberNames.SequenceNr, true, new IBatchProcessor<ChangeItem>() {
 	
 				@Override
 				public void onItem(ChangeItem item, long offset, long total)
 						throws Exception {
-					rsr.datawriter.value(writeObjectStateToJson(item));
+					if (format == null)
+						rsr.datawriter.value(writeObjectStateToJson(item));
+					else
+						format.writeChange(rsr.getOutputStream(), item.getSequenceNr(), writeObjectStateToJson(item));
 					lastWrittenRevision.set(item);
 				}
 			});
@@ -110,7 +509,7 @@ public class ChangeLogManager {
 		IContext c = Core.createSystemContext();
 		
 		rsr.datawriter.array();
-		writeChanges(rsr, c, since);
+		writeChanges(rsr, c, since, null);
 		rsr.datawriter.endArray();
 		
 		rsr.close();
@@ -124,7 +523,7 @@ public class ChangeLogManager {
 	 * @throws IOException
 	 * @throws CoreException
 	 */
-	private void serveChangesFeed(RestServiceRequest rsr, long since, long maxDurationSeconds) throws IOException, CoreException {
+	private void serveChangesFeed(RestServiceRequest rsr, FeedFormat format, long since, long maxDurationSeconds) throws IOException, CoreException {
 			//Continuation continuation = ContinuationSupport.getContinuation(rsr.request);
 				
 			if (!rsr.request.isAsyncSupported())
@@ -137,23 +536,28 @@ public class ChangeLogManager {
 				if (RestServices.LOGPUBLISH.isDebugEnabled())
 					RestServices.LOGPUBLISH.debug("New continuation on " + rsr.request.getPathInfo());
 	
-				//make sure headers are send and some data is written, so that clients do not wait for headers to complete
-				rsr.response.getOutputStream().write(RestServices.END_OF_HTTPHEADER.getBytes(RestServices.UTF8));
+				format.writeStart(rsr.getOutputStream());
 
 				ChangeItem lastWrittenChange = null;
 				
 				if (since != -1) {
-					//write any changes between 'since' and the latest change
-					lastWrittenChange = writeChanges(rsr, Core.createSystemContext(), since);
+					//recent changes are written from memory once the consumer is registered, older changes are written from the database first
+					List<RecentChanges.Change> recent = recentChanges.getChangesSince(since);
+					
+					if (recent == null)
+						lastWrittenChange = writeChanges(rsr, Core.createSystemContext(), since, format);
 
 					//special case, if there where pending changes and the timeout is negative, which means "return when there are any changes", finish the request now. 
-					if (lastWrittenChange != null && maxDurationSeconds < 0) {
+					if (maxDurationSeconds < 0 && (lastWrittenChange != null || (recent != null && !recent.isEmpty()))) {
+						if (recent != null)
+							for(RecentChanges.Change change : recent)
+								format.writeChange(rsr.getOutputStream(), change.getSequenceNr(), change.getJson());
 						rsr.endDoc();
 						return;
 					}
 				}
 				
-				rsr.response.flushBuffer();
+				rsr.flush();
 				AsyncContext asyncContext = rsr.request.startAsync();
 				
 				/*
@@ -161,26 +565,40 @@ public class ChangeLogManager {
 				 * processed by this change manager between the moment the missing changes are written, and the moment that the subscriber is
 				 * actually registered. 
 				 * 
-				 * To make sure that doesn't happen, we again try to write any missing changes, but now in a synchronized block (note that processUpdate 
-				 * is also synchronized). We don't synchronize on the first 'writeChanges' call above, because initially there might be many many 
-				 * changes missing, and we don't want all consumers to block on them. 
+				 * To make sure that doesn't happen, we again try to write any missing changes, but now in a synchronized block (note that changes 
+				 * are published while synchronized as well, see completeSequenceNr). We don't synchronize on the first 'writeChanges' call above, 
+				 * because initially there might be many many changes missing, and we don't want all consumers to block on them. 
+				 * 
+				 * Usually, the missing changes are still available in memory, in which case they are only queued here and the database is not used. 
 				 */
 				synchronized(this) {
-					if (since != -1)
-						writeChanges(rsr, Core.createSystemContext(), lastWrittenChange == null ? 0 : lastWrittenChange.getSequenceNr());					
+					long written = since == -1 ? sequencer.getPublishedSequenceNr() : lastWrittenChange == null ? since : lastWrittenChange.getSequenceNr(); 
+					List<RecentChanges.Change> missed = null;
 					
-					ChangeLogConsumer lpsession = new ChangeLogConsumer(asyncContext, maxDurationSeconds < 0, this);
+					if (since != -1) {
+						missed = recentChanges.getChangesSince(written);
+						if (missed == null) {
+							ChangeItem last = writeChanges(rsr, Core.createSystemContext(), written, format);
+							if (last != null)
+								written = last.getSequenceNr();
+						}
+					}
+					
+					ChangeLogConsumer lpsession = new ChangeLogConsumer(asyncContext, rsr, format, written, maxDurationSeconds < 0, this);
+					if (missed != null)
+						for(RecentChanges.Change change : missed)
+							lpsession.addChange(change.getSequenceNr(), change.getJson());
 
 					consumers.add(lpsession);
 					rsr.request.setAttribute("lpsession", lpsession);
 				}
 				
-				if (maxDurationSeconds != 0L)
-					asyncContext.setTimeout(Math.abs(maxDurationSeconds) * 1000); 
+				asyncContext.setTimeout(Math.abs(maxDurationSeconds) * 1000); //zero disables the timeout
 			}
 			
 			else { //request already has an 'lpsession', so this is not the initial call, so we conclude that the continuation has expired
 				ChangeLogConsumer lpsession = (ChangeLogConsumer)rsr.request.getAttribute("lpsession");
+				lpsession.closeOutput();
 				unregisterConsumer(lpsession);
 			}
 	}
@@ -194,18 +612,30 @@ public class ChangeLogManager {
 		if (!service.def.getEnableChangeLog())
 			throw new RestPublishException(RestExceptionType.METHOD_NOT_ALLOWED, "Change tracking is not enabled for this service");
 		
+		FeedFormat format = asFeed ? FeedFormat.determine(rsr) : null;
+		
 		rsr.response.setStatus(IMxRuntimeResponse.OK);
+		if (format != null && format.getContentType() != null) {
+			rsr.response.setContentType(format.getContentType());
+			rsr.response.setHeader(RestServices.HEADER_CACHECONTROL, "no-cache");
+		}
+		else
+			rsr.startDoc();
+		
+		rsr.startCompression(); //headers are committed right away, so decide on compression now
 		rsr.response.flushBuffer();
 		long since = 0;
-	
-		rsr.startDoc();
 		
 		if (rsr.request.getParameter(RestServices.PARAM_SINCE) != null) 
 			since = Long.parseLong(rsr.request.getParameter(RestServices.PARAM_SINCE));
+		else if (asFeed && rsr.request.getHeader(RestServices.HEADER_LASTEVENTID) != null) //reconnecting event stream
+			since = Long.parseLong(rsr.request.getHeader(RestServices.HEADER_LASTEVENTID).trim());
 		
 		if (asFeed) {
+			//streaming formats send heartbeats, so the connection can be kept open
 			String longPollMaxDuration = rsr.request.getParameter(RestServices.PARAM_TIMEOUT);
-			serveChangesFeed(rsr, since, Utils.isEmpty(longPollMaxDuration) ? RestServices.LONGPOLL_MAXDURATION : Long.valueOf(longPollMaxDuration));
+			long defaultDuration = format == FeedFormat.JSON ? RestServices.LONGPOLL_MAXDURATION : 0;
+			serveChangesFeed(rsr, format, since, Utils.isEmpty(longPollMaxDuration) ? defaultDuration : Long.valueOf(longPollMaxDuration));
 		}
 
 		else {
@@ -215,13 +645,14 @@ public class ChangeLogManager {
 		}
 	}
 
-	private void publishUpdate(ChangeItem objectState) {
-		JSONObject json = writeObjectStateToJson(objectState);
-		
+	/**
+	 * Queues the change for all connected consumers. Consumers are written to by separate threads, so this never blocks on slow clients. 
+	 */
+	private void publishUpdate(long sequenceNr, RawJson json) {
 		for(int i = consumers.size() - 1; i >= 0; i--) {
 			ChangeLogConsumer s = consumers.get(i);
 			try {
-				s.addInstruction(json);
+				s.addChange(sequenceNr, json);
 			} catch (Exception e) {
 				RestServices.LOGPUBLISH.warn("Failed to publish update to some client: " + json, e);
 				unregisterConsumer(s);
@@ -230,10 +661,147 @@ public class ChangeLogManager {
 		}
 	}
 
-	synchronized private void processUpdate(String key, String jsonString, String eTag, boolean deleted) throws Exception {
-		IContext context = Core.createSystemContext();
+	private void processUpdate(String key, String jsonString, String eTag, boolean deleted) throws Exception {
+		swapLock.readLock().lock();
+		try {
+			//Updates of the same key are serialized, updates of different keys can be stored concurrently
+			Lock lock = keyLocks.get(key);
+			lock.lock();
+			try {
+				for(int attempt = 1;; attempt++) {
+					try {
+						processUpdateHelper(getChangeLog(), key, jsonString, eTag, deleted, true);
+						break;
+					}
+					catch(ConcurrentUpdateException e) { //updated by another node, compare with its state again
+						if (attempt >= 3)
+							throw e;
+					}
+				}
+			}
+			finally {
+				lock.unlock();
+			}
+			
+			if (shadowChangeLog != null)
+				keysChangedDuringRebuild.add(key);
+		}
+		finally {
+			swapLock.readLock().unlock();
+		}
+	}
+	
+	/**
+	 * Stores the new state of a chunk of objects in the shadow change log, using one query per change log, and one commit 
+	 * for the items that are new in the shadow. Unchanged objects keep the sequence number they had in the current change log, 
+	 * so that consumers only receive objects that actually changed after the swap. 
+	 * 
+	 * The shadow is only written by the rebuild, which stores each key once per phase, so shadow items are not locked. 
+	 * @param states the JSON of each object by key, or null if the object was deleted
+	 */
+	private void processShadowUpdates(IContext context, ChangeLog shadow, Map<String, String> states) throws Exception {
+		Map<String, ChangeItem> inShadow = getChangeItems(context, shadow, states.keySet());
+		Map<String, ChangeItem> published = getChangeItems(context, getChangeLog(), states.keySet());
+		
+		CommitBatch created = new CommitBatch(context, Math.max(1, states.size()));
+		List<Long> sequenceNrs = new ArrayList<Long>();
+		
+		try {
+			for(Map.Entry<String, String> state : states.entrySet()) {
+				String key = state.getKey();
+				String jsonString = state.getValue();
+				boolean deleted = jsonString == null;
+				String eTag = deleted ? null : Utils.getMD5Hash(jsonString);
+				
+				if (inShadow.containsKey(key)) { //stored before in this rebuild
+					processUpdateHelper(shadow, key, jsonString, eTag, deleted, false);
+					continue;
+				}
+				
+				ChangeItem current = published.get(key);
+				
+				if (current != null && !current.get_IsDirty() && (
+						(deleted && current.getIsDeleted()) 
+					||	(!deleted && !current.getIsDeleted() && eTag.equals(getCompactETag(current)))
+				)) {
+					//unchanged, but stored with the current format
+					created.add(createShadowItem(context, shadow, key, deleted ? current.getEtag() : eTag, jsonString, current.getSequenceNr()));
+					continue;
+				}
+				
+				if (deleted && (current == null || current.getIsDeleted())) 
+					continue; //not published, so no need to publish the delete
+				
+				if (clusterSafe) { //numbers are assigned while storing
+					ChangeItem item = new ChangeItem(context);
+					item.setKey(key);
+					item.setChangeItem_ChangeLog(shadow);
+					storeUpdate(item, eTag, jsonString, deleted, false);
+				}
+				else { //changed, or published before, so consumers should learn about the delete
+					long seq = getNextSequenceNr();
+					sequenceNrs.add(seq);
+					created.add(createShadowItem(context, shadow, key, eTag, jsonString, seq));
+				}
+			}
+			
+			created.flush();
+		}
+		finally {
+			for(long seq : sequenceNrs)
+				completeSequenceNr(seq, null, null);
+		}
+	}
+	
+	private static IMendixObject createShadowItem(IContext context, ChangeLog shadow, String key, String eTag, String jsonString, long sequenceNr) {
+		ChangeItem item = new ChangeItem(context);
+		item.setKey(key);
+		item.setEtag(eTag);
+		item.setIsDeleted(jsonString == null);
+		item.setJson(jsonString == null ? "" : jsonString);
+		item.setSequenceNr(sequenceNr);
+		item.set_IsDirty(false);
+		item.setChangeItem_ChangeLog(shadow);
+		return item.getMendixObject();
+	}
+	
+	/**
+	 * Retrieves the change items of the given keys with a single query 
+	 */
+	private static Map<String, ChangeItem> getChangeItems(IContext context, ChangeLog log, Collection<String> keys) throws CoreException {
+		Map<String, ChangeItem> items = new HashMap<String, ChangeItem>();
+		if (keys.isEmpty())
+			return items;
+		
+		XPath<ChangeItem> xp = XPath.create(context, ChangeItem.class)
+				.eq(ChangeItem.MemberNames.ChangeItem_ChangeLog, log)
+				.subconstraint();
+		
+		boolean first = true;
+		for(String key : keys) {
+			if (!first)
+				xp.or();
+			xp.eq(ChangeItem.MemberNames.Key, key);
+			first = false;
+		}
+		
+		for(ChangeItem item : xp.close().all())
+			items.put(item.getKey(), item);
+		return items;
+	}
+	
+	/**
+	 * Returns the ETag of the stored object as it is calculated now. Before storage format version 2, objects were stored 
+	 * as pretty printed JSON, and the ETag was calculated from that. 
+	 */
+	private static String getCompactETag(ChangeItem item) throws UnsupportedEncodingException {
+		if (item.getJson().indexOf('\n') == -1) //compact JSON never contains line breaks
+			return item.getEtag();
+		return Utils.getMD5Hash(new JSONObject(item.getJson()).toString());
+	}
 	
-		ChangeLog sState = getChangeLog();
+	private void processUpdateHelper(ChangeLog sState, String key, String jsonString, String eTag, boolean deleted, boolean publish) throws Exception {
+		IContext context = Core.createSystemContext();
 		
 		ChangeItem objectState = XPath.create(context, ChangeItem.class)
 				.eq(ChangeItem.MemberNames.Key, key)
@@ -248,7 +816,7 @@ public class ChangeLogManager {
 			objectState = new ChangeItem(context);
 			objectState.setKey(key);
 			objectState.setChangeItem_ChangeLog(sState);
-			storeUpdate(objectState, eTag, jsonString, deleted);
+			storeUpdate(objectState, eTag, jsonString, deleted, publish);
 		}
 		
 		//nothing changed
@@ -266,17 +834,34 @@ public class ChangeLogManager {
 		
 		//changed
 		else
-			storeUpdate(objectState, eTag, jsonString, deleted);
+			storeUpdate(objectState, eTag, jsonString, deleted, publish);
 	}
 
+	/**
+	 * Returns the next sequence number. Numbers are reserved in blocks, so that the change log doesn't need to be committed 
+	 * for each update. The change log stores the highest reserved number, so numbers are always increasing, 
+	 * but the unused part of the last block is skipped after a restart. Not used if publishing is cluster safe. 
+	 */
 	private synchronized long getNextSequenceNr() {
+		if (nextSequenceNr > reservedSequenceNr)
+			reserveSequenceNrs();
+		
+		long seq = nextSequenceNr++;
+		sequencer.assign(seq);
+		return seq;
+	}
+	
+	private void reserveSequenceNrs() {
 		ChangeLog state;
 		try {
 			state = getChangeLog();
-			long seq = state.getSequenceNr() + 1;
-			state.setSequenceNr(seq);
+			long first = state.getSequenceNr() + 1;
+			long last = first + Math.max(1, RestServices.SEQUENCE_BLOCK_SIZE) - 1;
+			state.setSequenceNr(last);
 			state.commit();
-			return seq;
+			
+			nextSequenceNr = first;
+			reservedSequenceNr = last;
 		} catch (CoreException e) {
 			throw new RestServiceRuntimeException(e);
 		}
@@ -294,6 +879,10 @@ public class ChangeLogManager {
 			return;
 		}
 		
+		service.getChangeLogManager().publishDeleteHelper(context, source, true);
+	}
+	
+	private void publishDeleteHelper(IContext context, IMendixObject source, boolean allowQueue) {
 		try {
 	
 			String key = service.getKey(context, source);
@@ -301,8 +890,11 @@ public class ChangeLogManager {
 				RestServices.LOGPUBLISH.warn("No valid key for object " + source + "; skipping updates");
 				return;
 			}
+			
+			if (allowQueue && writeBehindQueue != null && writeBehindQueue.add(key, new QueuedChange(context, null)))
+				return;
 				
-			service.getChangeLogManager().processUpdate(key, null, null, true);
+			processUpdate(key, null, null, true);
 		}
 		catch(Exception e) {
 			throw new RuntimeException("Failed to process change for " + source + ": " + e.getMessage(), e);
@@ -323,15 +915,70 @@ public class ChangeLogManager {
 			RestServices.LOGPUBLISH.warn("Skipped publishing update, changetracking is not enabled for service " + service.getRelativeUrl());
 			return;
 		}	
-		service.getChangeLogManager().publishUpdateHelper(context, source, checkConstraint);
+		
+		ChangeLogManager manager = service.getChangeLogManager();
+		if (checkConstraint && manager.writeBehindQueue != null) {
+			String key = service.getKey(context, source);
+			if (Utils.isValidKey(key) && manager.writeBehindQueue.add(key, new QueuedChange(context, source.getId())))
+				return; //serialized later, the constraint is checked at that time
+		}
+		
+		manager.publishUpdateHelper(context, source, checkConstraint);
+	}
+
+	private static class QueuedChange {
+		final IContext context; //the context that published the change
+		final IMendixIdentifier id; //the updated object, or null for deletes
+		
+		QueuedChange(IContext context, IMendixIdentifier id) {
+			this.context = context;
+			this.id = id;
+		}
+	}
+	
+	/**
+	 * Publishes a change that was queued by publishUpdate or publishDelete. Returns false if the change cannot be published yet.
+	 * Changes are only published once the transaction that published them has ended, and updated objects are retrieved 
+	 * again, so that their latest committed state is published. 
+	 */
+	private boolean processQueuedChange(String key, QueuedChange change, int attempt) throws Exception {
+		if (change.context.isInTransaction())
+			return false;
+		
+		if (change.id == null) {
+			processUpdate(key, null, null, true);
+			return true;
+		}
+		
+		IContext context = Core.createSystemContext();
+		IMendixObject source = Core.retrieveId(context, change.id);
+		if (source == null) {
+			//a delete of the object would have replaced this change in the queue, so the object was not committed (yet)
+			if (attempt < MAX_QUEUED_CHANGE_RETRIES)
+				return false;
+			
+			RestServices.LOGPUBLISH.warn(service.getRelativeUrl() + ": Skipped publishing update of '" + key + "', the object was not found after " + attempt + " retries. Probably its creation was rolled back.");
+			return true;
+		}
+		
+		publishUpdateHelper(context, source, true);
+		return true;
 	}
 
 	void publishUpdateHelper(IContext context, IMendixObject source,
 			boolean checkConstraint) {
+		publishUpdateHelper(context, source, checkConstraint, null);
+	}
+	
+	/**
+	 * @param shadow the shadow change log to store the update in, or null to store and publish it in the current change log
+	 */
+	private void publishUpdateHelper(IContext context, IMendixObject source,
+			boolean checkConstraint, ChangeLog shadow) {
 		try {
 			//Check if publishable
 			if (checkConstraint && !service.identifierInConstraint(context, source.getId())) {
-				publishDelete(context, source); //maybe the object was visible but not anymore
+				publishDeleteHelper(context, source, false); //maybe the object was visible but not anymore
 				return; 
 			}
 			
@@ -343,10 +990,13 @@ public class ChangeLogManager {
 				
 			JSONObject result = service.serializeToJson(context, source);
 					
-			String jsonString = result.toString(4);
+			String jsonString = result.toString();
 			String eTag = Utils.getMD5Hash(jsonString);
 			
-			processUpdate(key, jsonString, eTag, false);
+			if (shadow != null)
+				processShadowUpdates(context, shadow, Collections.singletonMap(key, jsonString));
+			else
+				processUpdate(key, jsonString, eTag, false);
 		}
 		catch(Exception e) {
 			throw new RuntimeException("Failed to process change for " + source + ": " + e.getMessage(), e);
@@ -358,6 +1008,13 @@ public class ChangeLogManager {
 		return this.changeLog;
 	}
 	
+	/**
+	 * Rebuilds the change log by republishing all objects of the service into a new, shadow change log. The current 
+	 * change log keeps serving requests until the shadow is complete, after which the shadow replaces it. 
+	 * 
+	 * Objects that did not change keep their sequence number, so that consumers only receive the changes they missed. 
+	 * Connected feed consumers receive a resync instruction after the swap, and should reconnect. 
+	 */
 	public void rebuildChangeLog(IContext context) throws CoreException {
 		synchronized(this) {
 			if (isRebuildingChangeLog) {
@@ -366,79 +1023,227 @@ public class ChangeLogManager {
 			isRebuildingChangeLog = true;
 		}
 		
+		//Changes are made by the worker threads as well, so don't keep them in the transaction of the provided context
+		IContext rebuildContext = Core.createSystemContext();
+		ChangeLog shadow = null;
+		ChangeLog old = null;
+		
 		try {
 			RestServices.LOGPUBLISH.info(service.getRelativeUrl() + ": Initializing change log. This might take a while...");
-			RestServices.LOGPUBLISH.info(service.getRelativeUrl() + ": Initializing change log. Marking old index dirty...");
 			
-			//int NR_OF_BATCHES = 8;
+			shadow = new ChangeLog(rebuildContext);
+			shadow.commit();
 			
-			/**
-			 * From now on, consider everything dirty
-			 */
-			XPath.create(context, ChangeItem.class)
-				.eq(ChangeItem.MemberNames.ChangeItem_ChangeLog, getChangeLog())
-				.batch(RestServices.BATCHSIZE/*, NR_OF_BATCHES*/, new IBatchProcessor<ChangeItem>() {
-	
-					@Override
-					public void onItem(ChangeItem item, long offset, long total)
-							throws Exception {
-						item.set_IsDirty(true);
-						item.commit();
-					}
-				});
-			
-			RestServices.LOGPUBLISH.info(service.getRelativeUrl() + ": Initializing change log. Marking old index dirty... DONE. Rebuilding index for existing objects...");
+			keysChangedDuringRebuild.clear();
+			shadowChangeLog = shadow; //From now on, updates of the current change log are tracked
 			
 			/** 
-			 * Republish all known objects, if they are part of the constraint (won' t result in an update if nothing actually changed)
+			 * Republish all objects that are part of the constraint into the shadow
 			 */
-			XPath.create(context, service.getSourceEntity())
-				.append(service.getConstraint(context).replaceAll("(^\\[|\\]$)","")) //Note: trims brackets
-				.batch(RestServices.BATCHSIZE/*, NR_OF_BATCHES*/, new IBatchProcessor<IMendixObject>() {
-	
-					@Override
-					public void onItem(IMendixObject item, long offset,
-							long total) throws Exception {
-						if (offset % 100 == 0)
-							RestServices.LOGPUBLISH.info("Initialize change long for object " + offset + " of " + total);
-						publishUpdateHelper(context, item, false); 
+			final ChangeLog target = shadow;
+			final ProgressLogger republishing = new ProgressLogger(RestServices.LOGPUBLISH, service.getRelativeUrl() + ": Initializing change log. Rebuilding index for existing objects", RestServices.REBUILD_PROGRESS_INTERVAL);
+			final ParallelBatch<IMendixObject> republish = new ParallelBatch<IMendixObject>("RestServices rebuild " + service.getRelativeUrl(), RestServices.REBUILD_THREADS, REBUILD_CHUNK_SIZE) {
+
+				@Override
+				protected void process(List<IMendixObject> items) throws Exception {
+					IContext workerContext = Core.createSystemContext();
+					Map<String, String> states = new LinkedHashMap<String, String>();
+					for(IMendixObject item : items) {
+						String key = service.getKey(workerContext, item);
+						if (Utils.isValidKey(key))
+							states.put(key, service.serializeToJson(workerContext, item).toString());
+						else
+							RestServices.LOGPUBLISH.warn("No valid key for object " + item + "; skipping updates");
 					}
-				});
+					processShadowUpdates(workerContext, target, states);
+					republishing.add(items.size());
+				}
+			};
 			
-			RestServices.LOGPUBLISH.info(service.getRelativeUrl() + ": Initializing change log. Rebuilding... DONE. Removing old entries...");
+			try {
+				XPath.create(rebuildContext, service.getSourceEntity())
+					.append(service.getConstraint(context).replaceAll("(^\\[|\\]$)","")) //Note: trims brackets
+					.batch(RestServices.BATCHSIZE, XPath.ID, true, new IBatchProcessor<IMendixObject>() {
+		
+						@Override
+						public void onItem(IMendixObject item, long offset,
+								long total) throws Exception {
+							republish.add(item);
+						}
+					});
+				republish.finish();
+			}
+			catch(CoreException e) {
+				throw e;
+			}
+			catch(RuntimeException e) {
+				throw e;
+			}
+			catch(Exception e) {
+				throw new RestServiceRuntimeException(e);
+			}
+			finally {
+				republish.abort();
+			}
+			republishing.done();
 
 			/**
-			 * Everything that is marked dirty, is either deleted earlier and shouldn' t be dirty, or should be deleted now. 
+			 * Everything that is in the current change log but not in the shadow, is either deleted earlier or should be deleted now. 
 			 */
-			XPath.create(context, ChangeItem.class)
+			final ProgressLogger sweeping = new ProgressLogger(RestServices.LOGPUBLISH, service.getRelativeUrl() + ": Initializing change log. Removing old entries", RestServices.REBUILD_PROGRESS_INTERVAL);
+			final List<String> keys = new ArrayList<String>(REBUILD_CHUNK_SIZE);
+			XPath.create(rebuildContext, ChangeItem.class)
 				.eq(ChangeItem.MemberNames.ChangeItem_ChangeLog, getChangeLog())
-				.eq(ChangeItem.MemberNames._IsDirty, true)
-				.batch(RestServices.BATCHSIZE/*, NR_OF_BATCHES*/, new IBatchProcessor<ChangeItem>() {
+				.batch(RestServices.BATCHSIZE, XPath.ID, true, new IBatchProcessor<ChangeItem>() {
 	
 					@Override
 					public void onItem(ChangeItem item, long offset, long total)
 							throws Exception {
-						//was already deleted, so OK
-						if (item.getIsDeleted() == true) {
-							item.set_IsDirty(false);
-							item.commit();
-						}
-						
-						//wasn' t deleted before. Delete now. 
-						else
-							storeUpdate(item, null, null, true);
+						keys.add(item.getKey());
+						if (keys.size() >= REBUILD_CHUNK_SIZE)
+							sweep(item.getContext(), target, keys, sweeping);
 					}
 			});
+			try {
+				sweep(rebuildContext, target, keys, sweeping);
+			}
+			catch(CoreException e) {
+				throw e;
+			}
+			catch(RuntimeException e) {
+				throw e;
+			}
+			catch(Exception e) {
+				throw new RestServiceRuntimeException(e);
+			}
+			sweeping.done();
+			
+			//Most updates that happened during the rebuild can be processed while still serving
+			processKeysChangedDuringRebuild(rebuildContext, shadow);
+			
+			swapLock.writeLock().lock();
+			try {
+				processKeysChangedDuringRebuild(rebuildContext, shadow);
+				
+				synchronized(this) {
+					old = getChangeLog();
+					
+					//continue with the current block, or after the numbers assigned by other nodes
+					shadow.setSequenceNr(clusterSafe ? ClusterSafeStore.getSequenceNr(old) : reservedSequenceNr);
+					shadow.set_ConfigurationHash(calculateServiceConfigurationHash(service.def));
+					shadow.setChangeLog_ServiceDefinition(service.def);
+					old.setChangeLog_ServiceDefinition(null);
+					Core.commit(rebuildContext, Arrays.asList(old.getMendixObject(), shadow.getMendixObject()));
+					
+					changeLog = shadow;
+					shadowChangeLog = null;
+					objectCache.clear();
+					recentChanges = createRecentChanges(nextSequenceNr - 1); //changes of the shadow were never published
+				}
+			}
+			finally {
+				swapLock.writeLock().unlock();
+			}
 			
-			changeLog.set_ConfigurationHash(calculateServiceConfigurationHash(service.def));
-			changeLog.commit();
+			sendResync();
+			
+			RestServices.LOGPUBLISH.info(service.getRelativeUrl() + ": Initializing change log. Removing previous change log");
+			XPath.create(rebuildContext, ChangeItem.class)
+				.eq(ChangeItem.MemberNames.ChangeItem_ChangeLog, old)
+				.deleteAll();
+			Core.delete(rebuildContext, old.getMendixObject());
 			
 			RestServices.LOGPUBLISH.info(service.getRelativeUrl() + ": Initializing change log. DONE");
 		}
+		catch(CoreException e) {
+			discardShadow(rebuildContext, shadow);
+			throw e;
+		}
+		catch(RuntimeException e) {
+			discardShadow(rebuildContext, shadow);
+			throw e;
+		}
 		finally {
+			shadowChangeLog = null;
+			keysChangedDuringRebuild.clear();
 			isRebuildingChangeLog = false;
 		}
 	}
+	
+	/**
+	 * Publishes the deletes of the keys that are in the current change log, but were not republished into the shadow 
+	 */
+	private void sweep(IContext context, ChangeLog shadow, List<String> keys, ProgressLogger progress) throws Exception {
+		Set<String> republished = getChangeItems(context, shadow, keys).keySet();
+		
+		Map<String, String> deleted = new LinkedHashMap<String, String>();
+		for(String key : keys)
+			if (!republished.contains(key))
+				deleted.put(key, null);
+		
+		processShadowUpdates(context, shadow, deleted);
+		progress.add(keys.size());
+		keys.clear();
+	}
+	
+	/**
+	 * Republishes the objects that were updated or deleted in the current change log while the shadow was being built. 
+	 */
+	private void processKeysChangedDuringRebuild(IContext context, ChangeLog shadow) throws CoreException {
+		while(!keysChangedDuringRebuild.isEmpty()) {
+			List<String> keys = new ArrayList<String>(keysChangedDuringRebuild);
+			keysChangedDuringRebuild.removeAll(keys);
+			
+			for(String key : keys) {
+				IMendixObject source = service.getObjectByKey(context, key);
+				try {
+					if (source == null)
+						processShadowUpdates(context, shadow, Collections.singletonMap(key, (String) null));
+					else
+						publishUpdateHelper(context, source, false, shadow);
+				}
+				catch(CoreException e) {
+					throw e;
+				}
+				catch(RuntimeException e) {
+					throw e;
+				}
+				catch(Exception e) {
+					throw new RestServiceRuntimeException(e);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Asks all connected feed consumers to reconnect, since their feed was based on the previous change log
+	 */
+	private void sendResync() {
+		for(ChangeLogConsumer consumer : new ArrayList<ChangeLogConsumer>(consumers))
+			consumer.requestReconnect();
+	}
+	
+	private void discardShadow(IContext context, ChangeLog shadow) {
+		if (shadow == null || shadow == changeLog)
+			return;
+		
+		shadowChangeLog = null;
+		try {
+			XPath.create(context, ChangeItem.class)
+				.eq(ChangeItem.MemberNames.ChangeItem_ChangeLog, shadow)
+				.deleteAll();
+			Core.delete(context, shadow.getMendixObject());
+		}
+		catch(Exception e) {
+			RestServices.LOGPUBLISH.error(service.getRelativeUrl() + ": Failed to remove incomplete change log: " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Version of the way objects are stored in the change log. Changing it rebuilds all change logs once.
+	 * 2: JSON and ETags are calculated from compact JSON
+	 */
+	private static final String STORAGE_FORMAT_VERSION = "2";
 
 	/**
 	 * Determines on which settings this index was build. If changed, a new index should be generated
@@ -450,6 +1255,7 @@ public class ChangeLogManager {
 		JSONObject exporttype = JSONSchemaBuilder.build(returnType);
 		
 		return StringUtils.join(new String[] {
+			STORAGE_FORMAT_VERSION,
 			def.getSourceEntity(), 
 			def.getSourceKeyAttribute(), 
 			def.getSourceConstraint(),
@@ -458,12 +1264,45 @@ public class ChangeLogManager {
 	}
 
 	public void dispose() {
+		if (writeBehindQueue != null)
+			flushWriteBehindQueue();
+		
+		if (tailer != null)
+			tailer.stop();
+		if (changeBus != null)
+			changeBus.unsubscribe(service.getRelativeUrl(), changeBusListener);
+		
+		objectCache.clear();
 		while(!consumers.isEmpty()) {
 			ChangeLogConsumer s = consumers.remove(0);
 			s.complete();
 		}
 	}
 
+	/**
+	 * Publishes all queued changes. If that doesn't succeed in time, the change log is marked as outdated, 
+	 * so that it is rebuild when the service is loaded again and no changes are lost. 
+	 */
+	private void flushWriteBehindQueue() {
+		int remaining;
+		try {
+			remaining = writeBehindQueue.stop(RestServices.WRITE_BEHIND_SHUTDOWN_TIMEOUT * 1000L);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			remaining = writeBehindQueue.size();
+		}
+		
+		if (remaining > 0 && changeLog != null) {
+			RestServices.LOGPUBLISH.warn(service.getRelativeUrl() + ": " + remaining + " queued changes were not published in time. The change log will be rebuild when the service is loaded again.");
+			try {
+				changeLog.set_ConfigurationHash("");
+				changeLog.commit();
+			} catch (CoreException e) {
+				RestServices.LOGPUBLISH.error(service.getRelativeUrl() + ": Failed to mark change log as outdated: " + e.getMessage(), e);
+			}
+		}
+	}
+
 	public long getNrOfConnections() {
 		return consumers.size();
 	}
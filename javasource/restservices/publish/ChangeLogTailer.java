@@ -0,0 +1,93 @@
+package restservices.publish;
+
+import restservices.RestServices;
+import restservices.proxies.ChangeItem;
+
+import com.mendix.core.Core;
+import com.mendix.core.CoreException;
+import com.mendix.systemwideinterfaces.core.IContext;
+
+import communitycommons.XPath;
+import communitycommons.XPath.IBatchProcessor;
+
+/**
+ * Polls the change log in the database for changes that are stored by other nodes of the cluster, and publishes
+ * them to the feed consumers that are connected to this node.
+ *
+ * Sequence numbers are assigned in the transaction that stores the change, so all changes with a number below a stored
+ * change are stored or rolled back before it. A read of the change log therefore confirms which numbers below the
+ * highest number found, and below the numbers that were resolved before the read started, were skipped, so that the
+ * manager can publish all changes in order of sequence number.
+ */
+class ChangeLogTailer {
+
+	private final ChangeLogManager manager;
+	private final String name;
+	private final boolean onlyWhenAwaiting;
+	private final Thread thread;
+	private volatile boolean stopped = false;
+
+	/**
+	 * @param onlyWhenAwaiting whether the change log is only read if the manager awaits changes, when changes are received through a change bus
+	 */
+	ChangeLogTailer(ChangeLogManager manager, String name, boolean onlyWhenAwaiting) {
+		this.manager = manager;
+		this.name = name;
+		this.onlyWhenAwaiting = onlyWhenAwaiting;
+		this.thread = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				tail();
+			}
+		}, "RestServices cluster tailer " + name);
+		this.thread.setDaemon(true);
+	}
+
+	void start() {
+		thread.start();
+	}
+
+	void stop() {
+		stopped = true;
+		thread.interrupt();
+	}
+
+	private void tail() {
+		while(!stopped) {
+			try {
+				if (!onlyWhenAwaiting || manager.isAwaitingChanges())
+					poll();
+			}
+			catch(Exception e) {
+				RestServices.LOGPUBLISH.warn("Failed to retrieve changes of other nodes for " + name + ": " + e.getMessage(), e);
+			}
+
+			try {
+				Thread.sleep(RestServices.CLUSTER_POLL_INTERVAL);
+			}
+			catch (InterruptedException e) {
+				return;
+			}
+		}
+	}
+
+	private void poll() throws CoreException {
+		final IContext context = Core.createSystemContext();
+		final long[] confirmed = { manager.getResolvedSequenceNr() };
+
+		XPath.create(context, ChangeItem.class)
+			.eq(ChangeItem.MemberNames.ChangeItem_ChangeLog, manager.getChangeLog())
+			.compare(ChangeItem.MemberNames.SequenceNr, ">", manager.getConfirmedSequenceNr())
+			.batch(RestServices.BATCHSIZE, ChangeItem.MemberNames.SequenceNr, false, new IBatchProcessor<ChangeItem>() {
+
+				@Override
+				public void onItem(ChangeItem item, long offset, long total) throws Exception {
+					confirmed[0] = Math.max(confirmed[0], item.getSequenceNr());
+					manager.publishUpdateFromChangeLog(item.getSequenceNr(), item);
+				}
+			});
+
+		manager.confirmChangeLogRead(confirmed[0]);
+	}
+}
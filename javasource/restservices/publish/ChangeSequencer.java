@@ -0,0 +1,151 @@
+package restservices.publish;
+
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import restservices.util.RawJson;
+
+/**
+ * Determines when the changes of a change log can be published to the feed consumers of this node. Changes are published
+ * in order of sequence number, and a change is only published once all lower numbers are published or known not to be
+ * published, so that a consumer that has seen a change never misses a change with a lower number.
+ *
+ * Numbers that are assigned by this node are awaited until the change is completed. If changes of other nodes are
+ * published as well (cluster fan-out), numbers are assigned in the transaction that stores the change, so all lower numbers
+ * are resolved (stored or rolled back) once a number is assigned. The numbers that are skipped between known changes are
+ * then awaited until the change log in the database confirms which of them were stored.
+ *
+ * Not thread safe, the owner should synchronize.
+ */
+public class ChangeSequencer {
+
+	private static final RawJson SKIPPED = new RawJson("null");
+
+	private final boolean includesOtherNodes;
+	private final TreeMap<Long, RawJson> pending = new TreeMap<Long, RawJson>(); //null if not completed yet
+	private long publishedSequenceNr;
+	private long resolvedSequenceNr; //all numbers up to here are stored or rolled back
+	private long confirmedSequenceNr; //all stored changes up to here are known
+
+	/**
+	 * @param publishedSequenceNr the sequence number of the last change that was published before
+	 * @param includesOtherNodes whether changes of other nodes are published as well
+	 */
+	public ChangeSequencer(long publishedSequenceNr, boolean includesOtherNodes) {
+		this.includesOtherNodes = includesOtherNodes;
+		this.publishedSequenceNr = publishedSequenceNr;
+		this.resolvedSequenceNr = publishedSequenceNr;
+		this.confirmedSequenceNr = publishedSequenceNr;
+	}
+
+	/**
+	 * Registers a sequence number that is assigned to a change of this node. Changes with higher numbers are not published
+	 * until it is completed.
+	 */
+	public void assign(long seq) {
+		pending.put(seq, null);
+		resolvedSequenceNr = Math.max(resolvedSequenceNr, seq - 1);
+	}
+
+	/**
+	 * Completes a sequence number that was assigned to this node, and returns the changes that can be published now.
+	 * @param json the change to publish, or null if the change was not stored or should not be published
+	 */
+	public SortedMap<Long, RawJson> complete(long seq, RawJson json) {
+		if (!pending.containsKey(seq))
+			throw new IllegalStateException("Sequence number " + seq + " was not assigned");
+
+		pending.put(seq, json == null ? SKIPPED : json);
+		resolvedSequenceNr = Math.max(resolvedSequenceNr, seq);
+		return drain();
+	}
+
+	/**
+	 * Registers a change that was stored by another node, and returns the changes that can be published now.
+	 * Changes that were received or published before are ignored.
+	 */
+	public SortedMap<Long, RawJson> receive(long seq, RawJson json) {
+		if (seq > publishedSequenceNr && !pending.containsKey(seq))
+			pending.put(seq, json);
+
+		resolvedSequenceNr = Math.max(resolvedSequenceNr, seq);
+		return drain();
+	}
+
+	/**
+	 * Confirms that all stored changes up to the given sequence number are completed or received, so that the numbers
+	 * in between are known to be skipped. Returns the changes that can be published now.
+	 */
+	public SortedMap<Long, RawJson> confirm(long seq) {
+		confirmedSequenceNr = Math.max(confirmedSequenceNr, seq);
+		return drain();
+	}
+
+	/**
+	 * Returns whether the change with the given sequence number was published, or is awaiting publication
+	 */
+	public boolean isKnown(long seq) {
+		return seq <= publishedSequenceNr || pending.containsKey(seq);
+	}
+
+	/**
+	 * Returns the highest sequence number up to which all changes are stored or rolled back. A read of the change log
+	 * that starts after this call sees all stored changes up to this number.
+	 */
+	public long getResolvedSequenceNr() {
+		return resolvedSequenceNr;
+	}
+
+	/**
+	 * Returns the highest sequence number up to which all stored changes are known to be received or completed.
+	 */
+	public long getConfirmedSequenceNr() {
+		return Math.max(confirmedSequenceNr, publishedSequenceNr);
+	}
+
+	/**
+	 * Returns the sequence number of the last published change
+	 */
+	public long getPublishedSequenceNr() {
+		return publishedSequenceNr;
+	}
+
+	/**
+	 * Returns the highest sequence number up to which all changes are stored, changes above it might be stored but are not
+	 * published yet. Returns Long.MAX_VALUE if no change is awaited.
+	 */
+	public long getStoredSequenceNr() {
+		if (includesOtherNodes)
+			return publishedSequenceNr;
+		return pending.isEmpty() ? Long.MAX_VALUE : pending.firstKey() - 1;
+	}
+
+	/**
+	 * Returns whether a completed or received change waits for sequence numbers that are not confirmed yet
+	 */
+	public boolean isWaiting() {
+		return !pending.isEmpty() && pending.firstEntry().getValue() != null;
+	}
+
+	private SortedMap<Long, RawJson> drain() {
+		SortedMap<Long, RawJson> publishable = new TreeMap<Long, RawJson>();
+
+		while(!pending.isEmpty()) {
+			Map.Entry<Long, RawJson> first = pending.firstEntry();
+			if (first.getValue() == null)
+				break; //not completed yet
+
+			//numbers of other nodes that were skipped might still be received
+			if (includesOtherNodes && first.getKey() > publishedSequenceNr + 1 && first.getKey() - 1 > confirmedSequenceNr)
+				break;
+
+			pending.pollFirstEntry();
+			publishedSequenceNr = first.getKey();
+			if (first.getValue() != SKIPPED)
+				publishable.put(first.getKey(), first.getValue());
+		}
+
+		return publishable;
+	}
+}
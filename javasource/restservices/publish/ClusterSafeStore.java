@@ -0,0 +1,179 @@
+package restservices.publish;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.function.Function;
+
+import restservices.proxies.ChangeItem;
+import restservices.proxies.ChangeLog;
+import restservices.util.RestServiceRuntimeException;
+
+import com.mendix.core.Core;
+
+/**
+ * Atomic updates of change logs and change items, for services that are published from multiple nodes of a cluster.
+ * The Mendix API has no conditional updates, so these use compare-and-set SQL statements on the tables of the
+ * entities, assuming the default table and column names.
+ */
+final class ClusterSafeStore {
+
+	private ClusterSafeStore() {
+	}
+
+	/**
+	 * Is notified of the sequence number that is assigned to a change item, while the transaction that stores it is running
+	 */
+	interface SequenceNrListener {
+		void assigned(long sequenceNr);
+
+		/**
+		 * The item was not stored, the number will be assigned again by the next update of the change log
+		 */
+		void released(long sequenceNr);
+	}
+
+	/**
+	 * Assigns the next sequence number of the change log to the change item, and stores the state of the item in the same
+	 * transaction. The change log stays locked until the transaction commits, so changes are committed in order of sequence
+	 * number, also if they are stored by different nodes. The item is only stored if it still has the expected sequence
+	 * number in the database. Returns the assigned sequence number, or -1 if the item was updated by someone else in the mean time.
+	 */
+	static long storeWithNextSequenceNr(final ChangeLog changeLog, final ChangeItem item, final long expectedSequenceNr, final SequenceNrListener listener) {
+		return execute(new Function<Connection, Long>() {
+
+			@Override
+			public Long apply(Connection connection) {
+				try {
+					String table = table(connection, ChangeLog.entityName);
+					String sequenceNr = column(connection, ChangeLog.MemberNames.SequenceNr);
+					String id = column(connection, "id");
+					long changeLogId = changeLog.getMendixObject().getId().toLong();
+
+					boolean autoCommit = connection.getAutoCommit();
+					connection.setAutoCommit(false);
+					long assigned = -1;
+					boolean committed = false;
+					try {
+						PreparedStatement increment = connection.prepareStatement("UPDATE " + table + " SET " + sequenceNr + " = " + sequenceNr + " + 1 WHERE " + id + " = ?");
+						try {
+							increment.setLong(1, changeLogId);
+							if (increment.executeUpdate() != 1)
+								throw new IllegalStateException("Change log with id " + changeLogId + " does not exist");
+						}
+						finally {
+							increment.close();
+						}
+
+						assigned = readLong(connection, "SELECT " + sequenceNr + " FROM " + table + " WHERE " + id + " = ?", changeLogId);
+						listener.assigned(assigned);
+
+						if (!updateIfUnchanged(connection, item, assigned, expectedSequenceNr))
+							return -1L;
+
+						connection.commit();
+						committed = true;
+						return assigned;
+					}
+					finally {
+						if (!committed) {
+							if (assigned != -1)
+								listener.released(assigned); //while the change log is still locked, so that the number is not assigned again yet
+							connection.rollback();
+						}
+						connection.setAutoCommit(autoCommit);
+					}
+				}
+				catch (SQLException e) {
+					throw new RestServiceRuntimeException("Failed to store change item: " + e.getMessage(), e);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Returns the highest reserved sequence number of the change log, as stored in the database
+	 */
+	static long getSequenceNr(final ChangeLog changeLog) {
+		return execute(new Function<Connection, Long>() {
+
+			@Override
+			public Long apply(Connection connection) {
+				try {
+					return readLong(connection, "SELECT " + column(connection, ChangeLog.MemberNames.SequenceNr) + " FROM " + table(connection, ChangeLog.entityName)
+							+ " WHERE " + column(connection, "id") + " = ?", changeLog.getMendixObject().getId().toLong());
+				}
+				catch (SQLException e) {
+					throw new RestServiceRuntimeException("Failed to read sequence number: " + e.getMessage(), e);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Stores the state of an existing change item with the given sequence number, but only if it still has the expected
+	 * sequence number in the database.
+	 */
+	private static boolean updateIfUnchanged(Connection connection, ChangeItem item, long sequenceNr, long expectedSequenceNr) throws SQLException {
+		PreparedStatement update = connection.prepareStatement("UPDATE " + table(connection, ChangeItem.entityName) + " SET "
+				+ column(connection, ChangeItem.MemberNames.SequenceNr) + " = ?, "
+				+ column(connection, ChangeItem.MemberNames.Etag) + " = ?, "
+				+ column(connection, ChangeItem.MemberNames.Json) + " = ?, "
+				+ column(connection, ChangeItem.MemberNames.IsDeleted) + " = ?, "
+				+ column(connection, ChangeItem.MemberNames._IsDirty) + " = ? "
+				+ "WHERE " + column(connection, "id") + " = ? AND " + column(connection, ChangeItem.MemberNames.SequenceNr) + " = ?");
+		try {
+			update.setLong(1, sequenceNr);
+			update.setString(2, item.getEtag());
+			update.setString(3, item.getJson());
+			update.setBoolean(4, item.getIsDeleted());
+			update.setBoolean(5, item.get_IsDirty());
+			update.setLong(6, item.getMendixObject().getId().toLong());
+			update.setLong(7, expectedSequenceNr);
+			return update.executeUpdate() == 1;
+		}
+		finally {
+			update.close();
+		}
+	}
+
+	private static <T> T execute(Function<Connection, T> action) {
+		return Core.dataStorage().executeWithConnection(action);
+	}
+
+	private static long readLong(Connection connection, String query, long id) throws SQLException {
+		PreparedStatement select = connection.prepareStatement(query);
+		try {
+			select.setLong(1, id);
+			ResultSet result = select.executeQuery();
+			try {
+				if (!result.next())
+					throw new IllegalStateException("Object with id " + id + " does not exist");
+				return result.getLong(1);
+			}
+			finally {
+				result.close();
+			}
+		}
+		finally {
+			select.close();
+		}
+	}
+
+	/**
+	 * Tables are named 'module$entity' in lower case
+	 */
+	private static String table(Connection connection, String entityName) throws SQLException {
+		return quote(connection, entityName.toLowerCase().replace('.', '$'));
+	}
+
+	private static String column(Connection connection, Object memberName) throws SQLException {
+		return quote(connection, memberName.toString().toLowerCase());
+	}
+
+	private static String quote(Connection connection, String identifier) throws SQLException {
+		String quote = connection.getMetaData().getIdentifierQuoteString().trim();
+		return quote + identifier + quote;
+	}
+}
@@ -0,0 +1,192 @@
+package restservices.publish;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.http.HttpServletResponse;
+
+import restservices.RestServices;
+
+/**
+ * Output stream of a RestServiceRequest. Compresses the response if the client accepts it and the response is large enough.
+ *
+ * Output is buffered until the threshold is reached, so that small responses are sent as is. Once compression has started,
+ * flush performs a sync flush of the compressor, so that streaming responses (such as the changes feed) can be decoded
+ * by the client after each flush.
+ */
+class CompressingOutputStream extends OutputStream {
+
+	private final HttpServletResponse response;
+	private final String encoding;
+	private final int threshold;
+
+	private boolean enabled = true;
+	private ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+	private OutputStream out = null; //set once it is decided whether the response is compressed
+	private Sink sink = null;
+	private boolean closed = false;
+
+	/**
+	 * @param encoding the content encoding to use, or null if the client does not accept a supported encoding
+	 */
+	CompressingOutputStream(HttpServletResponse response, String encoding, int threshold) {
+		this.response = response;
+		this.encoding = encoding;
+		this.threshold = threshold;
+	}
+
+	/**
+	 * Determines the encoding to use based on the value of an Accept-Encoding header. Returns null if no supported encoding is accepted.
+	 */
+	static String negotiateEncoding(String acceptEncoding) {
+		if (acceptEncoding == null)
+			return null;
+
+		boolean acceptsDeflate = false;
+		for(String part : acceptEncoding.split(",")) {
+			String[] params = part.trim().split(";");
+			String name = params[0].trim().toLowerCase();
+			boolean rejected = false;
+			for(int i = 1; i < params.length; i++) {
+				String param = params[i].trim().replace(" ", "");
+				if (param.startsWith("q=") && param.matches("q=0(\\.0*)?"))
+					rejected = true;
+			}
+
+			if (rejected)
+				continue;
+			if (RestServices.ENCODING_GZIP.equals(name) || "x-gzip".equals(name))
+				return RestServices.ENCODING_GZIP;
+			if (RestServices.ENCODING_DEFLATE.equals(name))
+				acceptsDeflate = true;
+		}
+		return acceptsDeflate ? RestServices.ENCODING_DEFLATE : null;
+	}
+
+	/**
+	 * Disables compression for this response, as long as no output has been written yet.
+	 */
+	void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	/**
+	 * Starts compressing right away, regardless of the threshold. Should be used for responses that are flushed before
+	 * they are complete, since flushing commits the headers.
+	 */
+	void startCompression() throws IOException {
+		if (out == null)
+			decide(enabled && encoding != null);
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		write(new byte[] { (byte) b }, 0, 1);
+	}
+
+	@Override
+	public void write(byte[] data, int offset, int length) throws IOException {
+		if (closed)
+			throw new IOException("Stream closed");
+
+		if (out == null) {
+			if (buffer.size() + length <= threshold) {
+				buffer.write(data, offset, length);
+				return;
+			}
+			decide(enabled && encoding != null);
+		}
+		out.write(data, offset, length);
+	}
+
+	@Override
+	public void flush() throws IOException {
+		if (closed)
+			return;
+		if (out == null)
+			decide(false); //headers will be committed, so it is now or never. Small output; send as is
+		out.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (closed)
+			return;
+		if (out == null)
+			decide(false);
+		closed = true;
+		out.close(); //finishes the compressor as well
+	}
+
+	/**
+	 * Sends all further output to the given stream instead of the response. Used once the response is written using non-blocking IO. 
+	 */
+	void redirect(OutputStream target) throws IOException {
+		startCompression();
+		sink.target = target;
+	}
+
+	/**
+	 * Discards any output that is not sent yet, after the response was reset.
+	 */
+	void reset() {
+		buffer = new ByteArrayOutputStream();
+		out = null;
+		sink = null;
+		closed = false;
+	}
+
+	private void decide(boolean compress) throws IOException {
+		OutputStream raw = sink = new Sink(response.getOutputStream());
+		if (enabled && encoding != null)
+			response.addHeader("Vary", RestServices.HEADER_ACCEPTENCODING);
+		
+		if (compress) {
+			response.setHeader(RestServices.HEADER_CONTENTENCODING, encoding);
+			if (RestServices.ENCODING_GZIP.equals(encoding))
+				out = new GZIPOutputStream(raw, 8192, true);
+			else
+				out = new DeflaterOutputStream(raw, true);
+		}
+		else
+			out = raw;
+
+		if (buffer.size() > 0)
+			buffer.writeTo(out);
+		buffer = null;
+	}
+
+	/**
+	 * The stream the (compressed) output is written to, which can be replaced while compressing
+	 */
+	private static class Sink extends OutputStream {
+		private volatile OutputStream target;
+
+		Sink(OutputStream target) {
+			this.target = target;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			target.write(b);
+		}
+
+		@Override
+		public void write(byte[] data, int offset, int length) throws IOException {
+			target.write(data, offset, length);
+		}
+
+		@Override
+		public void flush() throws IOException {
+			target.flush();
+		}
+
+		@Override
+		public void close() throws IOException {
+			target.close();
+		}
+	}
+}
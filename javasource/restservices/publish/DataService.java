@@ -20,9 +20,11 @@ import restservices.publish.RestServiceRequest.ResponseType;
 import restservices.util.ICloseable;
 import restservices.util.JsonDeserializer;
 import restservices.util.JsonSerializer;
+import restservices.util.RawJson;
 import restservices.util.Utils;
 
 import com.google.common.base.Preconditions;
+import com.google.common.io.BaseEncoding;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
@@ -35,6 +37,7 @@ import com.mendix.systemwideinterfaces.core.IContext;
 import com.mendix.systemwideinterfaces.core.IMendixIdentifier;
 import com.mendix.systemwideinterfaces.core.IMendixObject;
 import com.mendix.systemwideinterfaces.core.meta.IMetaObject;
+import com.mendix.systemwideinterfaces.core.meta.IMetaPrimitive;
 
 import communitycommons.XPath;
 import communitycommons.XPath.IBatchProcessor;
@@ -91,7 +94,7 @@ public class DataService {
 		return RestServices.getAbsoluteUrl(getRelativeUrl());
 	}
 
-	private IMendixObject getObjectByKey(IContext context,
+	IMendixObject getObjectByKey(IContext context,
 			String key) throws CoreException {
 		try {
 			String xpath = XPath.create(context, getSourceEntity()).eq(getKeyAttribute(), key).getXPath() + this.getConstraint(context);
@@ -138,8 +141,26 @@ public class DataService {
 
 	
 	public void serveListing(RestServiceRequest rsr, boolean includeData, int offset, int limit) throws Exception {
+		serveListing(rsr, includeData, offset, limit, null);
+	}
+	
+	/**
+	 * Serves the listing of this service. If a limit but no offset is provided, or an 'after' cursor is provided, 
+	 * a single page is served which continues after the key encoded in the cursor. The cursor of the next page is 
+	 * provided in the Link header of the response. 
+	 */
+	public void serveListing(RestServiceRequest rsr, boolean includeData, int offset, int limit, String after) throws Exception {
 		if (!def.getEnableListing())
 			throw new RestPublishException(RestExceptionType.METHOD_NOT_ALLOWED, "List is not enabled for this service");
+		if (after != null || (offset < 0 && limit >= 0)) {
+			if (offset >= 0)
+				throw new RestPublishException(RestExceptionType.BAD_REQUEST, "'offset' and 'after' parameters cannot be combined");
+			if (limit == 0 || limit < -1)
+				throw new RestPublishException(RestExceptionType.BAD_REQUEST, "'limit' should be positive and larget than zero");
+			
+			serveListingPage(rsr, includeData, after, limit);
+			return;
+		}
 		if (offset >= 0 ^ limit >= 0)
 			throw new RestPublishException(RestExceptionType.BAD_REQUEST, "'offset' and 'limit' parameters should both be provided and positive, or none of them");
 		if (offset >= 0 && limit < 1)
@@ -169,22 +190,127 @@ public class DataService {
 			.eq(ChangeItem.MemberNames._IsDirty, false)
 			.addSortingAsc(ChangeItem.MemberNames.Key);
 			
-		if (offset > -1)
-			xp.offset(offset); //MWE: note that the combination of offset/limit and batch only works in community commons 4.3.2 or higher!
 		if (limit > 0)
 			xp.limit(limit);
 		
-		xp.batch(RestServices.BATCHSIZE, new IBatchProcessor<ChangeItem>() {
+		IBatchProcessor<ChangeItem> processor = new IBatchProcessor<ChangeItem>() {
 
 				@Override
 				public void onItem(ChangeItem item, long offset, long total)
 						throws Exception {
 					if (includeData)
-						rsr.datawriter.value(new JSONObject(item.getJson()));
+						rsr.datawriter.value(new RawJson(item.getJson()));
 					else
 						rsr.datawriter.value(getServiceUrl() + item.getKey());
 				}
-			});
+			};
+		
+		if (offset > 0) {
+			xp.offset(offset); //MWE: note that the combination of offset/limit and batch only works in community commons 4.3.2 or higher!
+			xp.batch(RestServices.BATCHSIZE, processor);
+		}
+		else
+			xp.batch(RestServices.BATCHSIZE, ChangeItem.MemberNames.Key, true, processor);
+	}
+
+	/**
+	 * Serves at most 'limit' items (capped at the batch size) with a key larger than the key in the cursor. 
+	 * Uses the sort on the key so that each page is as cheap as the first one, regardless of its depth. 
+	 */
+	private void serveListingPage(RestServiceRequest rsr, boolean includeData, String after, int limit) throws Exception {
+		IContext context = rsr.getContext();
+		String afterKey = after == null ? null : decodeCursor(after);
+		int pageSize = limit > 0 ? Math.min(limit, RestServices.BATCHSIZE) : RestServices.BATCHSIZE;
+		
+		List<Object> page = new ArrayList<Object>();
+		String lastKey = null;
+		boolean hasNext;
+		
+		if (def.getEnableChangeLog()) {
+			XPath<ChangeItem> xp  = XPath.create(context, ChangeItem.class)
+				.eq(ChangeItem.MemberNames.ChangeItem_ChangeLog, getChangeLogManager().getChangeLog())
+				.eq(ChangeItem.MemberNames.IsDeleted, false)
+				.eq(ChangeItem.MemberNames._IsDirty, false);
+			if (afterKey != null)
+				xp.compare(ChangeItem.MemberNames.Key, ">", afterKey);
+			
+			List<ChangeItem> items = xp.addSortingAsc(ChangeItem.MemberNames.Key).limit(pageSize + 1).all();
+			hasNext = items.size() > pageSize;
+			for(ChangeItem item : items.subList(0, Math.min(pageSize, items.size()))) {
+				lastKey = item.getKey();
+				page.add(includeData ? new RawJson(item.getJson()) : getServiceUrl() + item.getKey());
+			}
+		}
+		else {
+			XPath<IMendixObject> xp = XPath.create(context, getSourceEntity());
+			if (afterKey != null)
+				xp.compare(getKeyAttribute(), ">", toKeyValue(afterKey));
+			String xpath = xp.getXPath() + getConstraint(context);
+			
+			List<IMendixObject> items = Core.retrieveXPathQuery(context, xpath, pageSize + 1, 0, ImmutableMap.of(getKeyAttribute(), "ASC"));
+			hasNext = items.size() > pageSize;
+			for(IMendixObject item : items.subList(0, Math.min(pageSize, items.size()))) {
+				lastKey = getKey(context, item); 
+				if (includeData)
+					page.add(serializeToJson(context, item));
+				else if (Utils.isValidKey(lastKey))
+					page.add(getObjecturl(context, item));
+			}
+		}
+		
+		if (hasNext && lastKey != null) {
+			String next = Utils.appendParamToUrl(getServiceUrl(), RestServices.PARAM_AFTER, encodeCursor(lastKey));
+			if (limit > 0)
+				next = Utils.appendParamToUrl(next, RestServices.PARAM_LIMIT, String.valueOf(limit));
+			if (includeData)
+				next = Utils.appendParamToUrl(next, RestServices.PARAM_DATA, "true");
+			rsr.response.setHeader(RestServices.HEADER_LINK, "<" + next + ">; rel=\"next\"");
+		}
+		
+		rsr.startDoc();
+		
+		if (rsr.getResponseContentType() == ResponseType.HTML)
+			rsr.write("<h1>" + getRelativeUrl() + "</h1>");
+		
+		rsr.datawriter.array();
+		for(Object item : page)
+			rsr.datawriter.value(item);
+		rsr.datawriter.endArray();
+		
+		rsr.endDoc();
+	}
+	
+	private static String encodeCursor(String key) throws UnsupportedEncodingException {
+		return BaseEncoding.base64Url().omitPadding().encode(key.getBytes(RestServices.UTF8));
+	}
+	
+	private static String decodeCursor(String cursor) throws Exception {
+		try {
+			return new String(BaseEncoding.base64Url().omitPadding().decode(cursor.trim()), RestServices.UTF8);
+		}
+		catch(IllegalArgumentException e) {
+			throw new RestPublishException(RestExceptionType.BAD_REQUEST, "Invalid value for the 'after' parameter");
+		}
+	}
+	
+	/**
+	 * Converts a key to the type of the key attribute, so that numeric keys are compared as numbers
+	 */
+	private Object toKeyValue(String key) throws RestPublishException {
+		IMetaPrimitive primitive = Core.getMetaObject(getSourceEntity()).getMetaPrimitive(getKeyAttribute());
+		switch(primitive.getType()) {
+			case AutoNumber:
+			case Integer:
+			case Long:
+				try {
+					return Long.valueOf(key);
+				}
+				catch(NumberFormatException e) {
+					throw new RestPublishException(RestExceptionType.BAD_REQUEST, "Invalid value for the 'after' parameter");
+				}
+			default:
+				return key;
+		}
 	}
 
 	private void serveListingFromDB(RestServiceRequest rsr, boolean includeData, int baseoffset, int limit) throws Exception {
@@ -228,17 +354,17 @@ public class DataService {
 
 	
 	private void serveGetFromIndex(RestServiceRequest rsr, String key) throws Exception {
-		ChangeItem source = getObjectStateByKey(rsr.getContext(), key);
-		if (source == null || source.getIsDeleted() || source.get_IsDirty()) 
+		PublishedObjectCache.Entry source = getChangeLogManager().getPublishedObject(rsr.getContext(), key);
+		if (source == null || source.isDeleted()) 
 			throw new RestPublishException(RestExceptionType.NOT_FOUND,	getRelativeUrl() + "/" + key);
 		
-		if (Utils.isNotEmpty(rsr.getETag()) && rsr.getETag().equals(source.getEtag())) {
+		if (Utils.isNotEmpty(rsr.getETag()) && rsr.getETag().equals(source.getETag())) {
 			rsr.setStatus(IMxRuntimeResponse.NOT_MODIFIED);
 			rsr.close();
 			return;
 		}
 		
-		writeGetResult(rsr,key, new JSONObject(source.getJson()), source.getEtag());
+		writeGetResult(rsr,key, new RawJson(source.getJsonBytes()), source.getETag());
 	}
 
 	private void serveGetFromDB(RestServiceRequest rsr, String key) throws Exception {
@@ -250,13 +376,16 @@ public class DataService {
 		
 		JSONObject result = serializeToJson(rsr.getContext(), source);
 				
-		String jsonString = result.toString(4);
+		String jsonString = result.toString();
 		String eTag = Utils.getMD5Hash(jsonString);
 		
 		writeGetResult(rsr, key, result, eTag);
 	}
 
-	private void writeGetResult(RestServiceRequest rsr, String key, JSONObject result, String eTag) {
+	/**
+	 * @param result JSONObject or RawJson to write
+	 */
+	private void writeGetResult(RestServiceRequest rsr, String key, Object result, String eTag) {
 		if (eTag.equals(rsr.getETag())) {
 			rsr.setStatus(IMxRuntimeResponse.NOT_MODIFIED);
 			rsr.close();
@@ -427,7 +556,7 @@ public class DataService {
 		else {
 			JSONObject result = serializeToJson(context, source);
 				
-			String jsonString = result.toString(4);
+			String jsonString = result.toString();
 			currentETag = Utils.getMD5Hash(jsonString);
 		}
 		return currentETag;
@@ -529,7 +658,8 @@ public class DataService {
 					serveListing(rsr,
 							"true".equals(rsr.getRequestParameter(RestServices.PARAM_DATA,"false")),
 							Integer.valueOf(rsr.getRequestParameter(RestServices.PARAM_OFFSET, "-1")),
-							Integer.valueOf(rsr.getRequestParameter(RestServices.PARAM_LIMIT, "-1")));
+							Integer.valueOf(rsr.getRequestParameter(RestServices.PARAM_LIMIT, "-1")),
+							rsr.getRequestParameter(RestServices.PARAM_AFTER, null));
 			}
 		}));
 		
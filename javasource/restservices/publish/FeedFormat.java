@@ -0,0 +1,150 @@
+package restservices.publish;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import restservices.RestServices;
+import restservices.util.RawJson;
+
+/**
+ * The ways in which changes can be streamed to consumers of a changes feed. The format is determined by the
+ * 'contenttype' parameter or the Accept header of the request.
+ */
+enum FeedFormat {
+
+	/**
+	 * JSON objects, each preceded by a line break. The original format of the feed.
+	 */
+	JSON(null) {
+		@Override
+		void writeStart(OutputStream out) throws IOException {
+			//make sure headers are send and some data is written, so that clients do not wait for headers to complete
+			write(out, RestServices.END_OF_HTTPHEADER);
+		}
+
+		@Override
+		void writeChange(OutputStream out, long sequenceNr, RawJson json) throws IOException {
+			write(out, "\r\n");
+			out.write(json.getBytes());
+		}
+
+		@Override
+		void writeInstruction(OutputStream out, String event, RawJson json) throws IOException {
+			writeChange(out, 0, json);
+		}
+
+		@Override
+		void writeHeartbeat(OutputStream out) throws IOException {
+			write(out, "\r\n");
+		}
+	},
+
+	/**
+	 * Newline delimited JSON, one change per line. Heartbeats are empty lines.
+	 */
+	NDJSON(RestServices.CONTENTTYPE_NDJSON) {
+		@Override
+		void writeChange(OutputStream out, long sequenceNr, RawJson json) throws IOException {
+			writeSingleLine(out, json);
+			write(out, "\n");
+		}
+
+		@Override
+		void writeInstruction(OutputStream out, String event, RawJson json) throws IOException {
+			writeChange(out, 0, json);
+		}
+
+		@Override
+		void writeHeartbeat(OutputStream out) throws IOException {
+			write(out, "\n");
+		}
+	},
+
+	/**
+	 * Server-Sent Events. The id of each event is the sequence number of the change, so that clients resume
+	 * from the last received change when reconnecting. Heartbeats are comments.
+	 */
+	EVENTSTREAM(RestServices.CONTENTTYPE_EVENTSTREAM) {
+		@Override
+		void writeChange(OutputStream out, long sequenceNr, RawJson json) throws IOException {
+			write(out, "id: " + sequenceNr + "\ndata: ");
+			writeSingleLine(out, json);
+			write(out, "\n\n");
+		}
+
+		@Override
+		void writeInstruction(OutputStream out, String event, RawJson json) throws IOException {
+			write(out, "event: " + event + "\ndata: ");
+			writeSingleLine(out, json);
+			write(out, "\n\n");
+		}
+
+		@Override
+		void writeHeartbeat(OutputStream out) throws IOException {
+			write(out, ":\n\n");
+		}
+	};
+
+	private final String contentType;
+
+	private FeedFormat(String contentType) {
+		this.contentType = contentType;
+	}
+
+	static FeedFormat determine(RestServiceRequest rsr) {
+		String ct = rsr.request.getParameter(RestServices.PARAM_CONTENTTYPE);
+		if (ct == null)
+			ct = rsr.request.getHeader(RestServices.HEADER_ACCEPT);
+		if (ct != null) {
+			if (ct.contains(RestServices.CONTENTTYPE_EVENTSTREAM))
+				return EVENTSTREAM;
+			if (ct.contains(RestServices.CONTENTTYPE_NDJSON))
+				return NDJSON;
+		}
+		return JSON;
+	}
+
+	/**
+	 * The content type of the response, or null if it is determined by the response type of the request
+	 */
+	String getContentType() {
+		return contentType == null ? null : contentType + ";charset=UTF-8";
+	}
+
+	void writeStart(OutputStream out) throws IOException {
+		//headers are sent when flushed
+	}
+
+	abstract void writeChange(OutputStream out, long sequenceNr, RawJson json) throws IOException;
+
+	/**
+	 * Writes an instruction which is not a change, such as a request to reconnect
+	 */
+	abstract void writeInstruction(OutputStream out, String event, RawJson json) throws IOException;
+
+	/**
+	 * Writes data that is ignored by the client, to keep idle connections open
+	 */
+	abstract void writeHeartbeat(OutputStream out) throws IOException;
+
+	/**
+	 * Writes the JSON without line breaks, so that JSON that was stored pretty printed doesn't span multiple lines.
+	 * JSON strings cannot contain raw line breaks, and CR and LF bytes never occur inside multi byte UTF-8 characters,
+	 * so the line breaks can simply be left out.
+	 */
+	private static void writeSingleLine(OutputStream out, RawJson json) throws IOException {
+		byte[] bytes = json.getBytes();
+		int start = 0;
+		for(int i = 0; i < bytes.length; i++) {
+			if (bytes[i] == '\n' || bytes[i] == '\r') {
+				out.write(bytes, start, i - start);
+				start = i + 1;
+			}
+		}
+		out.write(bytes, start, bytes.length - start);
+	}
+
+	private static void write(OutputStream out, String data) throws IOException {
+		out.write(data.getBytes(RestServices.UTF8));
+	}
+}
@@ -0,0 +1,61 @@
+package restservices.publish;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import restservices.RestServices;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Change bus that only delivers changes within this runtime. Can be used to test cluster fan-out with multiple
+ * change log managers in a single runtime. Changes are delivered by a background thread, like a message bus would,
+ * so that listeners never run on the thread that publishes.
+ */
+public class LocalChangeBus implements ChangeBus {
+
+	private final ConcurrentMap<String, List<Listener>> listeners = new ConcurrentHashMap<String, List<Listener>>();
+	private final ExecutorService delivery = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+			.setNameFormat("RestServices local change bus #%d")
+			.setDaemon(true)
+			.build());
+
+	@Override
+	public void publish(final String service, final String origin, final long sequenceNr, final String key, final String json) {
+		final List<Listener> subscribed = listeners.get(service);
+		if (subscribed == null)
+			return;
+
+		delivery.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				for(Listener listener : subscribed) {
+					try {
+						listener.onChange(origin, sequenceNr, key, json);
+					}
+					catch(Exception e) {
+						RestServices.LOGPUBLISH.warn("Failed to deliver change " + sequenceNr + " of " + service + ": " + e.getMessage(), e);
+					}
+				}
+			}
+		});
+	}
+
+	@Override
+	public void subscribe(String service, Listener listener) {
+		listeners.putIfAbsent(service, new CopyOnWriteArrayList<Listener>());
+		listeners.get(service).add(listener);
+	}
+
+	@Override
+	public void unsubscribe(String service, Listener listener) {
+		List<Listener> subscribed = listeners.get(service);
+		if (subscribed != null)
+			subscribed.remove(listener);
+	}
+}
@@ -204,7 +204,7 @@ public class MicroflowService implements IRestServiceHandler{
 			if (filename != null && !filename.isEmpty())
 				rsr.response.setHeader(RestServices.HEADER_CONTENTDISPOSITION, "attachment;filename=\"" + Utils.urlEncode(filename) + "\"");
 			InputStream stream  = Core.getFileDocumentContent(rsr.getContext(), (IMendixObject)result);
-			IOUtils.copy(stream, rsr.response.getOutputStream());
+			IOUtils.copy(stream, rsr.getOutputStream());
 		}
 		else if (this.isReturnTypePrimitive) {
 			rsr.write(result == null ? "" : String.valueOf(result));
@@ -0,0 +1,111 @@
+package restservices.publish;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+
+/**
+ * Buffers the output of an asynchronous response, and sends it to the client using non-blocking IO, so that the thread
+ * that writes is never blocked by a slow client.
+ *
+ * Written data is only sent when flushed. The amount of data that is not sent yet can be used to detect slow clients.
+ */
+class NonBlockingOutput extends OutputStream implements WriteListener {
+
+	interface Callback {
+		/**
+		 * Invoked once the stream is closed and all output is sent
+		 */
+		void outputClosed();
+
+		void outputFailed(Throwable e);
+	}
+
+	private final ServletOutputStream target;
+	private final Callback callback;
+
+	private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+	private boolean flushRequested = false;
+	private boolean closed = false;
+	private boolean finished = false;
+
+	NonBlockingOutput(ServletOutputStream target, Callback callback) {
+		this.target = target;
+		this.callback = callback;
+	}
+
+	/**
+	 * Starts non-blocking IO. From now on, output is written to the response only when it is ready.
+	 */
+	void start() {
+		target.setWriteListener(this);
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		write(new byte[] { (byte) b }, 0, 1);
+	}
+
+	@Override
+	public synchronized void write(byte[] data, int offset, int length) throws IOException {
+		if (closed)
+			throw new IOException("Stream closed");
+		buffer.write(data, offset, length);
+	}
+
+	@Override
+	public synchronized void flush() throws IOException {
+		flushRequested = true;
+		send();
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		if (closed)
+			return;
+		closed = true;
+		send();
+	}
+
+	/**
+	 * The amount of bytes that is written, but not yet sent to the client
+	 */
+	synchronized int getPendingSize() {
+		return buffer.size();
+	}
+
+	@Override
+	public void onWritePossible() throws IOException {
+		send();
+	}
+
+	@Override
+	public void onError(Throwable e) {
+		callback.outputFailed(e);
+	}
+
+	private synchronized void send() throws IOException {
+		while(target.isReady()) {
+			if (buffer.size() > 0) {
+				byte[] data = buffer.toByteArray();
+				buffer.reset();
+				target.write(data);
+				flushRequested = true;
+			}
+			else if (flushRequested) {
+				flushRequested = false;
+				target.flush();
+			}
+			else {
+				if (closed && !finished) {
+					finished = true;
+					callback.outputClosed();
+				}
+				return;
+			}
+		}
+	}
+}
@@ -0,0 +1,98 @@
+package restservices.publish;
+
+import java.io.UnsupportedEncodingException;
+import java.util.concurrent.ConcurrentMap;
+
+import restservices.RestServices;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+
+/**
+ * Caches the published state of the objects of a single data service, so that GET requests for frequently requested keys
+ * can be served without retrieving the ChangeItem and parsing its JSON.
+ *
+ * The cache is bounded by the total size of the cached JSON; the least recently used entries are evicted first.
+ * Entries are updated by the change log manager whenever a new state of an object is stored.
+ */
+class PublishedObjectCache {
+
+	static class Entry {
+		private final long sequenceNr;
+		private final String eTag;
+		private final byte[] json;
+
+		Entry(long sequenceNr, String eTag, String json, boolean deleted) {
+			this.sequenceNr = sequenceNr;
+			this.eTag = eTag;
+			try {
+				this.json = deleted || json == null ? null : json.getBytes(RestServices.UTF8);
+			} catch (UnsupportedEncodingException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+
+		long getSequenceNr() {
+			return sequenceNr;
+		}
+
+		String getETag() {
+			return eTag;
+		}
+
+		boolean isDeleted() {
+			return json == null;
+		}
+
+		/**
+		 * The stored JSON, UTF-8 encoded
+		 */
+		byte[] getJsonBytes() {
+			return json;
+		}
+	}
+
+	private final Cache<String, Entry> cache;
+
+	PublishedObjectCache(long maxSizeInBytes) {
+		cache = CacheBuilder.newBuilder()
+			.maximumWeight(maxSizeInBytes)
+			.weigher(new Weigher<String, Entry>() {
+
+				@Override
+				public int weigh(String key, Entry entry) {
+					return 64 + key.length() * 2 + (entry.json == null ? 0 : entry.json.length);
+				}
+			})
+			.build();
+	}
+
+	Entry get(String key) {
+		return cache.getIfPresent(key);
+	}
+
+	/**
+	 * Stores the entry, unless a more recent state of the same object is cached already.
+	 */
+	void put(String key, Entry entry) {
+		ConcurrentMap<String, Entry> map = cache.asMap();
+		for(;;) {
+			Entry current = map.putIfAbsent(key, entry);
+			if (current == null || current.sequenceNr >= entry.sequenceNr || map.replace(key, current, entry))
+				return;
+		}
+	}
+
+	void invalidate(String key) {
+		cache.invalidate(key);
+	}
+
+	void clear() {
+		cache.invalidateAll();
+	}
+
+	long size() {
+		return cache.size();
+	}
+}
@@ -0,0 +1,115 @@
+package restservices.publish;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import restservices.util.RawJson;
+
+/**
+ * Ring buffer with the most recently published changes of a change log, so that consumers that are only slightly behind
+ * can catch up without querying the database.
+ *
+ * Changes are added by one thread at a time, in order of sequence number. Reading doesn't require locking; if a change
+ * is overwritten while it is being read, the read fails and the caller should use the database instead.
+ */
+public class RecentChanges {
+
+	public static class Change {
+		private final long index;
+		private final long previousSequenceNr;
+		private final long sequenceNr;
+		private final RawJson json;
+
+		Change(long index, long previousSequenceNr, long sequenceNr, RawJson json) {
+			this.index = index;
+			this.previousSequenceNr = previousSequenceNr;
+			this.sequenceNr = sequenceNr;
+			this.json = json;
+		}
+
+		public long getSequenceNr() {
+			return sequenceNr;
+		}
+
+		public RawJson getJson() {
+			return json;
+		}
+	}
+
+	private final int capacity;
+	private final AtomicReferenceArray<Change> changes;
+	private final long initialSequenceNr;
+	private long lastSequenceNr; //only used by the thread that adds
+	private volatile long count = 0;
+
+	/**
+	 * @param initialSequenceNr the sequence number up to which all changes are published already, and are not part of this buffer
+	 */
+	public RecentChanges(int capacity, long initialSequenceNr) {
+		this.capacity = Math.max(0, capacity);
+		this.changes = new AtomicReferenceArray<Change>(this.capacity);
+		this.initialSequenceNr = initialSequenceNr;
+		this.lastSequenceNr = initialSequenceNr;
+	}
+
+	/**
+	 * Adds a published change. Should be invoked by one thread at a time, in order of sequence number.
+	 */
+	public void add(long sequenceNr, RawJson json) {
+		if (capacity == 0)
+			return;
+
+		long index = count;
+		changes.set((int) (index % capacity), new Change(index, lastSequenceNr, sequenceNr, json));
+		lastSequenceNr = sequenceNr;
+		count = index + 1;
+	}
+
+	/**
+	 * Returns all changes after the given sequence number, in order, or null if some of these changes are no longer
+	 * (or not yet) available in this buffer. A buffer without capacity never has the changes available.
+	 */
+	public List<Change> getChangesSince(long since) {
+		if (capacity == 0)
+			return null;
+
+		long end = count;
+		if (end == 0)
+			return since >= initialSequenceNr ? Collections.<Change>emptyList() : null;
+
+		//the first change after 'since'
+		long low = Math.max(0, end - capacity);
+		long high = end;
+		while(low < high) {
+			long mid = (low + high) >>> 1;
+			Change change = get(mid);
+			if (change == null)
+				return null;
+			if (change.sequenceNr <= since)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+
+		if (low == end)
+			return Collections.emptyList();
+
+		List<Change> result = new ArrayList<Change>((int) (end - low));
+		for(long i = low; i < end; i++) {
+			Change change = get(i);
+			if (change == null)
+				return null;
+			result.add(change);
+		}
+
+		//changes between 'since' and the first available change might have been overwritten already
+		return result.get(0).previousSequenceNr <= since ? result : null;
+	}
+
+	private Change get(long index) {
+		Change change = changes.get((int) (index % capacity));
+		return change != null && change.index == index ? change : null;
+	}
+}
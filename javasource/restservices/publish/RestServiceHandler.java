@@ -31,10 +31,9 @@ import restservices.proxies.RestServiceError;
 import restservices.publish.RestPublishException.RestExceptionType;
 import restservices.util.Function;
 import restservices.util.ICloseable;
-import restservices.util.UriTemplate;
+import restservices.util.UriRouter;
 import restservices.util.Utils;
 
-import com.google.common.collect.Maps;
 import com.mendix.core.Core;
 import com.mendix.core.CoreException;
 import com.mendix.externalinterface.connector.RequestHandler;
@@ -52,13 +51,13 @@ public class RestServiceHandler extends RequestHandler{
 	
 	static class HandlerRegistration implements ICloseable {
 		final String method;
-		final UriTemplate template;
+		final String templatePath;
 		final String roleOrMicroflow;
 		final IRestServiceHandler handler;
 
-		HandlerRegistration(String method, UriTemplate template, String roleOrMicroflow, IRestServiceHandler handler) {
+		HandlerRegistration(String method, String templatePath, String roleOrMicroflow, IRestServiceHandler handler) {
 			this.method = method;
-			this.template = template;
+			this.templatePath = templatePath;
 			this.roleOrMicroflow = roleOrMicroflow;
 			this.handler = handler;
 		}
@@ -76,11 +75,12 @@ public class RestServiceHandler extends RequestHandler{
 
 		@Override
 		public void close() {
-			services.remove(this);			
+			removeService(this);
 		}
 	}
 	
 	private static List<HandlerRegistration> services = newCopyOnWriteArrayList();
+	private static volatile UriRouter<HandlerRegistration> router = UriRouter.<HandlerRegistration>builder().build();
 	private static List<String> metaServiceUrls = newCopyOnWriteArrayList();
 
 	static {
@@ -194,13 +194,33 @@ public class RestServiceHandler extends RequestHandler{
 	public static HandlerRegistration registerServiceHandler(HttpMethod method, String templatePath, String roleOrMicroflow, IRestServiceHandler handler) {
 		checkNotNull(method, "method");
 		
-		HandlerRegistration handlerRegistration = new HandlerRegistration(method.toString(), new UriTemplate(templatePath), roleOrMicroflow, handler);
-		services.add(handlerRegistration);
+		HandlerRegistration handlerRegistration = new HandlerRegistration(method.toString(), templatePath, roleOrMicroflow, handler);
+		addService(handlerRegistration);
 
 		RestServices.LOGPUBLISH.info("Registered data service on '" + method + " " + templatePath + "'");
 		return handlerRegistration;
 	}
 	
+	private static synchronized void addService(HandlerRegistration registration) {
+		services.add(registration);
+		rebuildRouter();
+	}
+
+	private static synchronized void removeService(HandlerRegistration registration) {
+		services.remove(registration);
+		rebuildRouter();
+	}
+
+	/**
+	 * Compiles the templates of all registered handlers into a new router, which replaces the current one at once
+	 */
+	private static synchronized void rebuildRouter() {
+		UriRouter.Builder<HandlerRegistration> builder = UriRouter.builder();
+		for (HandlerRegistration registration : services)
+			builder.add(registration.templatePath, registration);
+		router = builder.build();
+	}
+
 	private static void requestParamsToJsonMap(RestServiceRequest rsr, Map<String, String> params) {
 		for (String param : rsr.request.getParameterMap().keySet())
 			params.put(param, rsr.request.getParameter(param));
@@ -214,33 +234,33 @@ public class RestServiceHandler extends RequestHandler{
 	private static void executeHandler(final RestServiceRequest rsr, String method, String relpath, ISession existingSession) throws Exception {
 		boolean pathExists = false;
 
-		final Map<String, String> params = Maps.newHashMap();
-		for (final HandlerRegistration reg : services) {
-			if (reg.template.match(relpath, params)) {
-				if (reg.accepts(method, rsr)) {
-					// Mixin query parameters
-					requestParamsToJsonMap(rsr, params);
+		for (UriRouter.Match<HandlerRegistration> match : router.match(relpath)) {
+			final HandlerRegistration reg = match.getValue();
+			if (reg.accepts(method, rsr)) {
+				final Map<String, String> params = match.getParams();
 
-					// Execute the reqeust
-					if (rsr.authenticate(reg.roleOrMicroflow, existingSession)) {
+				// Mixin query parameters
+				requestParamsToJsonMap(rsr, params);
 
-						rsr.withTransaction(new Function<Boolean>() {
+				// Execute the reqeust
+				if (rsr.authenticate(reg.roleOrMicroflow, existingSession)) {
 
-							@Override
-							public Boolean apply() throws Exception {
-								reg.handler.execute(rsr, params);
-								return true;
-							}
+					rsr.withTransaction(new Function<Boolean>() {
 
-						});
+						@Override
+						public Boolean apply() throws Exception {
+							reg.handler.execute(rsr, params);
+							return true;
+						}
 
-						return;
-					} else {
-						throw new RestPublishException(RestExceptionType.UNAUTHORIZED, "Unauthorized. Please provide valid credentials or set up a Mendix user session");
-					}
+					});
+
+					return;
 				} else {
-					pathExists = true;
+					throw new RestPublishException(RestExceptionType.UNAUTHORIZED, "Unauthorized. Please provide valid credentials or set up a Mendix user session");
 				}
+			} else {
+				pathExists = true;
 			}
 		}
 
@@ -332,7 +352,7 @@ public class RestServiceHandler extends RequestHandler{
 	}
 
 	private void serveErrorPage(RestServiceRequest rsr, int status, String error, String errorCode) {
-		rsr.response.reset();
+		rsr.resetResponse();
 		rsr.response.setStatus(status);
 
 		//reques authentication
@@ -366,8 +386,8 @@ public class RestServiceHandler extends RequestHandler{
 		return started;
 	}
 
-	public static void clearServices() {
-		services.clear();	
+	public static synchronized void clearServices() {
+		services.clear();
 		registerServiceOverviewHandler();
 	}
 
@@ -1,6 +1,7 @@
 package restservices.publish;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -39,6 +40,7 @@ public class RestServiceRequest {
 	private RequestContentType requestContentType;
 	private IContext context;
 	protected DataWriter datawriter;
+	private final CompressingOutputStream outputStream;
 	private boolean autoLogout;
 	private ISession activeSession;
 	private IMxRuntimeResponse mxresponse;
@@ -53,11 +55,12 @@ public class RestServiceRequest {
 		this.requestContentType = determineRequestContentType(request);
 		this.responseContentType = determineResponseContentType(request);
 
-		try {
-			this.datawriter = new DataWriter(response.getOutputStream(), responseContentType == ResponseType.HTML ? DataWriter.HTML : responseContentType == ResponseType.XML ? DataWriter.XML : DataWriter.JSON);
-		} catch (IOException e) {
-			throw new RuntimeException(e);
-		}
+		String serviceName = relpath.split("/")[0];
+		String encoding = RestServices.isCompressionEnabled(serviceName) ? CompressingOutputStream.negotiateEncoding(request.getHeader(RestServices.HEADER_ACCEPTENCODING)) : null;
+		this.outputStream = new CompressingOutputStream(response, encoding, RestServices.COMPRESSION_THRESHOLD);
+		
+		this.datawriter = new DataWriter(outputStream, responseContentType == ResponseType.HTML ? DataWriter.HTML : responseContentType == ResponseType.XML ? DataWriter.XML : DataWriter.JSON);
+		this.datawriter.setPretty("true".equalsIgnoreCase(request.getParameter(RestServices.PARAM_PRETTY)));
 	}
 
 	private void setContext(IContext context) {
@@ -88,6 +91,9 @@ public class RestServiceRequest {
 		String password = null;
 		ISession session = null;
 		
+		if (authHeader != null && authHeader.trim().startsWith(RestServices.BEARER_AUTHENTICATION) && BearerToken.isEnabled())
+			return authenticateWithBearerToken(role, authHeader.trim().substring(RestServices.BEARER_AUTHENTICATION.length()));
+		
 		if (authHeader != null && authHeader.trim().startsWith(RestServices.BASIC_AUTHENTICATION)) {
 			String base64 = StringUtils.base64Decode(authHeader.trim().substring(RestServices.BASIC_AUTHENTICATION.length()).trim());
 			String[] parts = base64.split(":");
@@ -98,26 +104,41 @@ public class RestServiceRequest {
 		try {
 			//Check credentials provided by request
 			if (username != null) {
-				try {
-					session = Core.login(username, password);
-				}
-				catch (Exception e) { //can throw both authentication exceptions and core runtime exceptions, depending on whether the password or the username is wrong...
-					//Invalid credentials
-				}
-				if (session == null) {
-					RestServices.LOGPUBLISH.warn("Invalid credentials for user '" + username + "'");
-					setStatus(HttpStatus.SC_UNAUTHORIZED);
-					write("Invalid credentials");
-					return false;
-				}
+				String credentialsKey = AuthenticationCache.createKey(username, password);
+				IUser verifiedUser = AuthenticationCache.getVerifiedUser(credentialsKey);
 				
-				//same user as the one in the current session? recylcle the session
-				if (existingSession != null && session.getId().equals(existingSession.getId()) && existingSession.getUser().getName().equals(session.getUser().getName())) {
-					Core.logout(session);
-					session = existingSession;
+				if (verifiedUser != null)
+					session = AuthenticationCache.getSession(verifiedUser);
+				else {
+					try {
+						session = Core.login(username, password);
+					}
+					catch (Exception e) { //can throw both authentication exceptions and core runtime exceptions, depending on whether the password or the username is wrong...
+						//Invalid credentials
+					}
+					if (session == null) {
+						RestServices.LOGPUBLISH.warn("Invalid credentials for user '" + username + "'");
+						setStatus(HttpStatus.SC_UNAUTHORIZED);
+						write("Invalid credentials");
+						return false;
+					}
+					
+					//same user as the one in the current session? recylcle the session
+					if (existingSession != null && session.getId().equals(existingSession.getId()) && existingSession.getUser().getName().equals(session.getUser().getName())) {
+						Core.logout(session);
+						session = existingSession;
+					}
+					else if (AuthenticationCache.isEnabled()) {
+						AuthenticationCache.putVerifiedUser(credentialsKey, session.getUser(), true);
+						
+						ISession shared = AuthenticationCache.shareSession(session);
+						if (shared != session)
+							Core.logout(session);
+						session = shared;
+					}
+					else
+						this.autoLogout = true;
 				}
-				else
-					this.autoLogout = true;
 			}
 			
 			//check session from cookies
@@ -140,6 +161,40 @@ public class RestServiceRequest {
 		return false;
 	}
 
+
+	/**
+	 * Authenticates using a signed token, without checking credentials. The user is checked to be active and not blocked, 
+	 * but no session is started if the user has an active session already. The roles claim only determines whether the 
+	 * token can be used for this service; the request runs in the session of the user, with all its roles.
+	 */
+	private boolean authenticateWithBearerToken(String role, String token) throws Exception {
+		BearerToken.Claims claims = BearerToken.verify(token);
+		if (claims == null || !claims.allowsRole(role)) {
+			RestServices.LOGPUBLISH.warn("Invalid bearer token" + (claims == null ? "" : " for user '" + claims.getUsername() + "'"));
+			return false;
+		}
+		
+		IUser user = AuthenticationCache.getValidUser(claims.getUsername());
+		if (user == null) {
+			RestServices.LOGPUBLISH.warn("Bearer token for unknown, inactive or blocked user '" + claims.getUsername() + "'");
+			return false;
+		}
+		
+		ISession session;
+		if (AuthenticationCache.isEnabled())
+			session = AuthenticationCache.getSession(user);
+		else {
+			session = Core.initializeSession(user, null);
+			this.autoLogout = true;
+		}
+		
+		if (!session.getUser().getUserRoleNames().contains(role))
+			return false;
+		
+		setContext(session.createContext());
+		this.activeSession = session;
+		return true;
+	}
 	
 	private static final Map<String, Object> EMPTY_MAP = new HashMap<String, Object>();
 	
@@ -148,33 +203,48 @@ public class RestServiceRequest {
 		
 		try {
 			
-			// Create a context and transaction, so that headers can be inspected during the execution of the authorization microflow.
-			final IContext c = Core.createSystemContext();
-			this.setContext(c);
-			
-			IMendixObject userobject = withTransaction(new Function<IMendixObject>() {
-
-				@Override
-				public IMendixObject apply() throws CoreException {
-					return Core.execute(c, microflowName, EMPTY_MAP);
-				}
-			
-			});
-			
-			this.setContext(null); //authentication was in system context, but execution will be in user context
-			
-			if (userobject == null) 
-				return false;
-			
-			String username = (String) userobject.getValue(c, User.MemberNames.Name.toString());
+			//The microflow can use any part of the request, so its result is only cached if explicitly enabled
+			String authHeader = request.getHeader(RestServices.HEADER_AUTHORIZATION);
+			String credentialsKey = RestServices.AUTHENTICATION_CACHE_MICROFLOWS && authHeader != null ? AuthenticationCache.createKey(microflowName, authHeader) : null;
+			IUser user = credentialsKey == null ? null : AuthenticationCache.getVerifiedUser(credentialsKey);
 			
-			if (username == null || username.isEmpty())
-				throw new IllegalStateException("Trying to authenticate a user without a name"); //yes, this actually went wrong once during testing, due to a broken DB record...
+			if (user == null) {
+				// Create a context and transaction, so that headers can be inspected during the execution of the authorization microflow.
+				final IContext c = Core.createSystemContext();
+				this.setContext(c);
+				
+				IMendixObject userobject = withTransaction(new Function<IMendixObject>() {
+	
+					@Override
+					public IMendixObject apply() throws CoreException {
+						return Core.execute(c, microflowName, EMPTY_MAP);
+					}
+				
+				});
+				
+				this.setContext(null); //authentication was in system context, but execution will be in user context
+				
+				if (userobject == null) 
+					return false;
+				
+				String username = (String) userobject.getValue(c, User.MemberNames.Name.toString());
+				
+				if (username == null || username.isEmpty())
+					throw new IllegalStateException("Trying to authenticate a user without a name"); //yes, this actually went wrong once during testing, due to a broken DB record...
+				
+				user = Core.getUser(c, username);
+				if (credentialsKey != null)
+					AuthenticationCache.putVerifiedUser(credentialsKey, user, false);
+			}
 			
-			IUser user = Core.getUser(c, username);
-			ISession session = Core.initializeSession(user, null);
+			ISession session;
+			if (AuthenticationCache.isEnabled())
+				session = AuthenticationCache.getSession(user);
+			else {
+				session = Core.initializeSession(user, null);
+				this.autoLogout = true;
+			}
 			
-			this.autoLogout = true;
 			this.activeSession = session;
 
 			this.setContext(session.createContext());
@@ -217,6 +287,8 @@ public class RestServiceRequest {
 	}
 	
 	public void setResponseContentType(ResponseType responseType) {
+		outputStream.setEnabled(responseType != ResponseType.BINARY); //files are usually compressed already
+		
 		switch (responseType) {
 		case HTML:
 			response.setContentType("text/html;charset=UTF-8");
@@ -249,16 +321,54 @@ public class RestServiceRequest {
 	
 	public RestServiceRequest write(String data) {
 		try {
-			this.response.getOutputStream().write(data.getBytes(RestServices.UTF8));
+			this.outputStream.write(data.getBytes(RestServices.UTF8));
 		} catch (Exception e) {
 			throw new RuntimeException(e);
 		}
 		return this;
 	}
 	
+	/**
+	 * Returns the stream to which the response body should be written. The output might be compressed. 
+	 */
+	public OutputStream getOutputStream() {
+		return outputStream;
+	}
+	
+	/**
+	 * Starts compressing the output right away (if the client supports it), for responses that are flushed before they are complete. 
+	 * Should be called before the headers are committed. 
+	 */
+	void startCompression() throws IOException {
+		outputStream.startCompression();
+	}
+	
+	/**
+	 * Sends all further output to the given stream, for responses that are completed asynchronously using non-blocking IO. 
+	 */
+	void redirectOutput(OutputStream target) throws IOException {
+		outputStream.redirect(target);
+	}
+	
+	/**
+	 * Sends all output written so far to the client
+	 */
+	public void flush() throws IOException {
+		outputStream.flush();
+		response.flushBuffer();
+	}
+	
+	/**
+	 * Clears headers and any output that has not been sent yet
+	 */
+	void resetResponse() {
+		response.reset();
+		outputStream.reset();
+	}
+	
 	public void close() {
 		try {
-			this.response.getOutputStream().close();
+			this.outputStream.close();
 		} catch (IOException e) {
 			throw new RuntimeException(e);
 		}
@@ -297,6 +407,15 @@ public class RestServiceRequest {
 	}
 
 	public void dispose() {
+		//make sure buffered output is send, unless the response will be completed asynchronously
+		if (!request.isAsyncStarted()) {
+			try {
+				outputStream.close();
+			} catch (IOException e) {
+				RestServices.LOGPUBLISH.warn("Failed to close response: " + e.getMessage());
+			}
+		}
+		
 		if (autoLogout && this.activeSession != null)
 			Core.logout(this.activeSession);
 	}
@@ -0,0 +1,193 @@
+package restservices.publish;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import restservices.RestServices;
+
+/**
+ * Queue of pending changes, keyed by object key, which are processed in the background by a fixed amount of worker threads.
+ *
+ * A change that is added for a key that is still queued replaces the queued change, so that repeated updates of the same
+ * object are processed only once. Changes are only processed once they have been queued for at least 'delay' milliseconds.
+ * A processor can postpone a change that cannot be processed yet, for example because the transaction that produced it
+ * has not ended yet. Postponed changes are retried with an increasing delay, unless a newer change for the same key was
+ * queued in the mean time. Changes of the same key are never processed concurrently.
+ */
+public class WriteBehindQueue<T> {
+
+	private static final long MAX_RETRY_DELAY = 30000; //In milliseconds
+
+	public interface Processor<T> {
+		/**
+		 * Returns false to postpone the change, in which case it is processed again later.
+		 * @param attempt the amount of times the change was postponed already
+		 */
+		boolean process(String key, T change, int attempt) throws Exception;
+	}
+
+	private static class Pending<T> {
+		final T change;
+		final long due;
+		final int attempt;
+
+		Pending(T change, long due, int attempt) {
+			this.change = change;
+			this.due = due;
+			this.attempt = attempt;
+		}
+	}
+
+	private final String name;
+	private final Processor<T> processor;
+	private final int threads;
+	private final int maxLength;
+	private final long delay;
+
+	private final LinkedHashMap<String, Pending<T>> pending = new LinkedHashMap<String, Pending<T>>(); //ordered by time queued
+	private final Set<String> inProgress = new HashSet<String>();
+	private final List<Thread> workers = new ArrayList<Thread>();
+	private boolean stopped = false;
+
+	public WriteBehindQueue(String name, int threads, int maxLength, long delay, Processor<T> processor) {
+		if (threads < 1)
+			throw new IllegalArgumentException("Amount of threads should be positive");
+		this.name = name;
+		this.threads = threads;
+		this.maxLength = maxLength;
+		this.delay = delay;
+		this.processor = processor;
+	}
+
+	/**
+	 * Queues the change. Returns false if the change could not be queued because the queue is full or stopped,
+	 * in which case the caller should process the change itself.
+	 */
+	public synchronized boolean add(String key, T change) {
+		if (stopped)
+			return false;
+
+		boolean replaces = pending.remove(key) != null;
+		if (!replaces && pending.size() >= maxLength)
+			return false;
+
+		pending.put(key, new Pending<T>(change, System.currentTimeMillis() + delay, 0));
+		startWorkers();
+		notifyAll();
+		return true;
+	}
+
+	public synchronized int size() {
+		return pending.size() + inProgress.size();
+	}
+
+	/**
+	 * Stops accepting changes and processes the remaining changes, without waiting for their delay. Postponed changes
+	 * are still retried at their due time.
+	 * Returns the amount of changes that was not processed within the timeout.
+	 */
+	public int stop(long timeoutMs) throws InterruptedException {
+		List<Thread> running;
+		synchronized(this) {
+			stopped = true;
+			notifyAll();
+			running = new ArrayList<Thread>(workers);
+		}
+
+		long deadline = System.currentTimeMillis() + timeoutMs;
+		for(Thread worker : running)
+			worker.join(Math.max(1, deadline - System.currentTimeMillis()));
+
+		synchronized(this) {
+			for(Thread worker : workers)
+				worker.interrupt();
+			return size();
+		}
+	}
+
+	private void startWorkers() {
+		while(workers.size() < threads) {
+			Thread worker = new Thread(new Runnable() {
+
+				@Override
+				public void run() {
+					processPending();
+				}
+			}, "RestServices write-behind " + name + " #" + (workers.size() + 1));
+			worker.setDaemon(true);
+			workers.add(worker);
+			worker.start();
+		}
+	}
+
+	private void processPending() {
+		try {
+			Map.Entry<String, Pending<T>> next;
+			while((next = take()) != null) {
+				boolean processed = true;
+				try {
+					processed = processor.process(next.getKey(), next.getValue().change, next.getValue().attempt);
+				}
+				catch(Exception e) {
+					RestServices.LOGPUBLISH.error("Failed to process queued change for '" + next.getKey() + "' in " + name + ": " + e.getMessage(), e);
+				}
+				finally {
+					done(next.getKey(), processed ? null : next.getValue());
+				}
+			}
+		}
+		catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Returns the next change that is due and whose key is not being processed, or null if the queue is stopped and empty.
+	 */
+	private synchronized Map.Entry<String, Pending<T>> take() throws InterruptedException {
+		for(;;) {
+			if (stopped && pending.isEmpty())
+				return null;
+
+			long now = System.currentTimeMillis();
+			long wait = 0;
+
+			Iterator<Map.Entry<String, Pending<T>>> iter = pending.entrySet().iterator();
+			while(iter.hasNext()) {
+				Map.Entry<String, Pending<T>> e = iter.next();
+				if (inProgress.contains(e.getKey()))
+					continue;
+
+				Pending<T> p = e.getValue();
+				if ((stopped && p.attempt == 0) || p.due <= now) {
+					iter.remove();
+					inProgress.add(e.getKey());
+					return new AbstractMap.SimpleImmutableEntry<String, Pending<T>>(e);
+				}
+
+				//postponed changes are not ordered by due time, so all entries need to be checked
+				wait = wait == 0 ? p.due - now : Math.min(wait, p.due - now);
+			}
+
+			wait(wait);
+		}
+	}
+
+	/**
+	 * @param postponed the change to process again later, or null if it was processed
+	 */
+	private synchronized void done(String key, Pending<T> postponed) {
+		inProgress.remove(key);
+		if (postponed != null && !pending.containsKey(key)) { //a newer change replaces the postponed one
+			long retryDelay = Math.min(MAX_RETRY_DELAY, Math.max(delay, 100) << Math.min(postponed.attempt, 10));
+			pending.put(key, new Pending<T>(postponed.change, System.currentTimeMillis() + retryDelay, postponed.attempt + 1));
+		}
+		notifyAll();
+	}
+}
@@ -0,0 +1,86 @@
+package restservices.util;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.lang3.exception.ExceptionUtils;
+
+import restservices.RestServices;
+
+import com.mendix.core.Core;
+import com.mendix.core.CoreException;
+import com.mendix.systemwideinterfaces.core.DataValidationRuntimeException;
+import com.mendix.systemwideinterfaces.core.IContext;
+import com.mendix.systemwideinterfaces.core.IMendixObject;
+
+/**
+ * Collects objects to be committed, and commits them with a single list commit once flushed. The owner of the batch
+ * should flush it as soon as it is full.
+ * If a chunk fails to commit because of a validation error, its objects are committed one by one, so that the failing
+ * object is reported and the objects before it are still stored. Other errors, such as database errors, are rethrown,
+ * since the transaction might have been aborted by then.
+ */
+public class CommitBatch {
+
+	private final IContext context;
+	private final int batchSize;
+	private final List<IMendixObject> pending = new ArrayList<IMendixObject>();
+
+	public CommitBatch(IContext context, int batchSize) {
+		if (context == null)
+			throw new IllegalArgumentException("Context should not be null");
+		if (batchSize < 1)
+			throw new IllegalArgumentException("Batch size should be positive");
+		this.context = context;
+		this.batchSize = batchSize;
+	}
+
+	public IContext getContext() {
+		return context;
+	}
+
+	public void add(IMendixObject object) {
+		pending.add(object);
+	}
+
+	public boolean isFull() {
+		return pending.size() >= batchSize;
+	}
+
+	public void flush() throws CoreException {
+		if (pending.isEmpty())
+			return;
+
+		try {
+			Core.commit(context, pending);
+		}
+		catch(CoreException e) {
+			if (!isValidationError(e))
+				throw e;
+			commitPerObject(e);
+		}
+		catch(RuntimeException e) {
+			if (!isValidationError(e))
+				throw e;
+			commitPerObject(e);
+		}
+		finally {
+			pending.clear();
+		}
+	}
+
+	private void commitPerObject(Exception e) throws CoreException {
+		RestServices.LOGUTIL.warn("Failed to commit batch of " + pending.size() + " objects, retrying per object: " + e.getMessage());
+		for(IMendixObject object : pending)
+			Core.commit(context, object);
+	}
+
+	/**
+	 * Validation errors are raised before anything is written, so the transaction can still be used
+	 */
+	private static boolean isValidationError(Exception e) {
+		return ExceptionUtils.indexOfType(e, DataValidationRuntimeException.class) != -1
+			&& ExceptionUtils.indexOfType(e, SQLException.class) == -1;
+	}
+}
@@ -29,6 +29,7 @@ public class DataWriter {
 	public static final int HTML = 2;
 	
 	private int mode;
+	private boolean pretty = false;
 	private Stack<State> states = new Stack<State>();
 	private OutputStream writer;
 	
@@ -38,6 +39,14 @@ public class DataWriter {
 		states.push(new State()); //root state to avoid NPE's
 	}
 	
+	/**
+	 * If set, JSON output is indented for readability. By default JSON is written as compact as possible. 
+	 */
+	public DataWriter setPretty(boolean pretty) {
+		this.pretty = pretty;
+		return this;
+	}
+	
 	public DataWriter array() {
 		writeValueStart();
 		states.push(new State());
@@ -123,6 +132,8 @@ public class DataWriter {
 			writeJSONObject((JSONObject)value);
 		else if (value instanceof JSONArray)
 			writeJSONArray((JSONArray) value);
+		else if (value instanceof RawJson)
+			writeRawJson((RawJson) value);
 		else if (value instanceof Long)
 			value((long)(Long) value);
 		else if (value instanceof Double)
@@ -134,7 +145,7 @@ public class DataWriter {
 		else if (value instanceof Boolean)
 			value((boolean)(Boolean)value);
 		else
-			assrt(false, "Expected String, Number, JSONObject or JSONArray");
+			assrt(false, "Expected String, Number, JSONObject, JSONArray or RawJson");
 		return this;
 	}
 	
@@ -180,7 +191,7 @@ public class DataWriter {
 	private DataWriter writeJSONObject(JSONObject json) {
 		if (mode == JSON) {
 			writeValueStart();
-			write(json.toString(2));
+			write(pretty ? json.toString(2) : json.toString());
 			writeValueEnd();
 		}
 		else {
@@ -196,7 +207,7 @@ public class DataWriter {
 	private DataWriter writeJSONArray(JSONArray json) {
 		if (mode == JSON) {
 			writeValueStart();
-			write(json.toString(2));
+			write(pretty ? json.toString(2) : json.toString());
 			writeValueEnd();
 		}
 		else {
@@ -208,6 +219,17 @@ public class DataWriter {
 		return this;
 	}
 	
+	private DataWriter writeRawJson(RawJson json) {
+		if (mode == JSON && !pretty) {
+			writeValueStart();
+			write(json.getBytes());
+			writeValueEnd();
+		}
+		else
+			value(json.parse());
+		return this;
+	}
+	
 	private void writeValueStart() {
 		if (mode == JSON && (state().isArray || state().isObject) && state().hasSomething)
 			write(",");
@@ -258,6 +280,15 @@ public class DataWriter {
 		return this;
 	}
 	
+	private DataWriter write(byte[] data) {
+		try {
+			this.writer.write(data);
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+		return this;
+	}
+	
 	private void assrt(boolean value, String msg) {
 		if (!value)
 			throw new IllegalStateException(this.getClass().getName() + " " + msg);
@@ -13,11 +13,13 @@ import com.mendix.thirdparty.org.json.JSONException;
 import com.mendix.thirdparty.org.json.JSONObject;
 
 import restservices.RestServices;
+import restservices.consume.ReferenceResolver;
 import restservices.consume.RestConsumer;
 import restservices.proxies.HttpMethod;
 import restservices.proxies.Primitive;
 import restservices.proxies.RestPrimitiveType;
 import restservices.proxies.BooleanValue;
+import restservices.util.JsonStreamReader.Token;
 
 import com.mendix.core.Core;
 import com.mendix.core.objectmanagement.member.MendixObjectReference;
@@ -33,8 +35,98 @@ import com.mendix.systemwideinterfaces.core.meta.IMetaPrimitive.PrimitiveType;
 
 public class JsonDeserializer {
 
+	private static class Batch {
+		final CommitBatch commits;
+		final ReferenceResolver references;
+		final int batchSize;
+		
+		Batch(IContext context, int batchSize) {
+			this.commits = new CommitBatch(context, batchSize);
+			this.references = new ReferenceResolver(context);
+			this.batchSize = batchSize;
+		}
+		
+		void flush() throws Exception {
+			references.resolve();
+			commits.flush();
+		}
+		
+		/**
+		 * Objects are only committed once the references they point to are resolved, so that no empty placeholder 
+		 * objects are committed. While resolving, the batch is flushed once all references are resolved.
+		 */
+		void add(IMendixObject object) throws Exception {
+			commits.add(object);
+			if (commits.isFull() && !references.isResolving())
+				flush();
+		}
+	}
+	
+	private static final ThreadLocal<Batch> currentBatch = new ThreadLocal<Batch>();
+	
+	/**
+	 * Starts collecting the objects deserialized on this thread with the given context, instead of committing them 
+	 * one by one. They are committed in chunks of batchSize objects. Urls that need to be resolved are collected as well, 
+	 * and fetched concurrently in chunks of batchSize urls. 
+	 * 
+	 * Returns false if a batch was already active on this thread; the objects will be added to that batch and 
+	 * endBatch should not be called by the caller in that case. 
+	 */
+	public static boolean beginBatch(IContext context, int batchSize) {
+		if (currentBatch.get() != null)
+			return false;
+		currentBatch.set(new Batch(context, batchSize));
+		return true;
+	}
+	
+	/**
+	 * Resolves all pending references and commits all objects collected in the current batch so far
+	 */
+	public static void flushBatch() throws Exception {
+		Batch batch = currentBatch.get();
+		if (batch != null)
+			batch.flush();
+	}
+	
+	/**
+	 * Ends the current batch. If commit is true, pending references are resolved and the remaining objects are committed, 
+	 * otherwise they are left uncommitted. 
+	 */
+	public static void endBatch(boolean commit) throws Exception {
+		Batch batch = currentBatch.get();
+		currentBatch.set(null);
+		if (batch != null && commit)
+			batch.flush();
+	}
+	
+	private static Batch getBatch(IContext context) {
+		Batch batch = currentBatch.get();
+		return batch != null && batch.commits.getContext() == context ? batch : null;
+	}
+	
+	private static void commit(IContext context, IMendixObject target) throws Exception {
+		Batch batch = getBatch(context);
+		if (batch != null)
+			batch.add(target);
+		else
+			Core.commit(context, target);
+	}
+	
+	private static void resolvePendingReferences(Batch batch) throws Exception {
+		if (batch.references.getPendingCount() >= batch.batchSize)
+			batch.references.resolve();
+	}
+
 	public static IMendixIdentifier readJsonDataIntoMendixObject(IContext context,
 			Object jsonValue, String targetType, boolean autoResolveReferences) throws Exception {
+		//urls referred to multiple times in a batch are fetched only once, and result in the same object
+		Batch batch = getBatch(context);
+		if (batch != null && autoResolveReferences && jsonValue instanceof String && !Core.isSubClassOf(Primitive.entityName, targetType)) {
+			IMendixIdentifier id = batch.references.resolveLater((String) jsonValue, targetType);
+			resolvePendingReferences(batch);
+			return id;
+		}
+		
 		IMendixObject target = Core.instantiate(context, targetType);
 		readJsonDataIntoMendixObject(context, jsonValue, target, autoResolveReferences);
 		return target.getId();
@@ -42,8 +134,7 @@ public class JsonDeserializer {
 	
 	public static void readJsonDataIntoMendixObject(IContext context,
 			Object jsonValue, IMendixObject target, boolean autoResolveReferences) throws Exception {
-		if (!Utils.hasDataAccess(target.getMetaObject(), context))
-			throw new IllegalStateException("During JSON deserialization: Object of type '" + target.getType() + "' cannot be altered by users with role(s) " + context.getSession().getUserRolesNames() + ". Please check the security rules");
+		checkDataAccess(context, target);
 	
 		String targetType = target.getType();
 		
@@ -71,7 +162,14 @@ public class JsonDeserializer {
 		else if (jsonValue instanceof String) {
 			if (!autoResolveReferences)
 				throw new RuntimeException("Unable to read url '" + jsonValue + "' into '" + targetType + "'; since references will not be resolved automatically for incoming data");
-			RestConsumer.request(context, HttpMethod.GET, (String) jsonValue, null, target, false);
+			
+			Batch batch = getBatch(context);
+			if (batch != null) {
+				batch.references.resolveInto((String) jsonValue, target);
+				resolvePendingReferences(batch);
+			}
+			else
+				RestConsumer.request(context, HttpMethod.GET, (String) jsonValue, null, target, false);
 		}
 		
 		else if (jsonValue instanceof JSONObject) {
@@ -82,6 +180,95 @@ public class JsonDeserializer {
 			throw new RuntimeException("Unable to parse '" + jsonValue.toString() + "' into '" + targetType + "'");
 	}
 	
+	/**
+	 * Streaming variant of readJsonDataIntoMendixObject. Reads the next value from the reader directly into the target object, 
+	 * without building a JSONObject for it first. 
+	 */
+	public static void readJsonDataIntoMendixObject(IContext context,
+			JsonStreamReader reader, IMendixObject target, boolean autoResolveReferences) throws Exception {
+		//Only objects are streamed, the other cases are cheap to materialize
+		if (reader.peek() != Token.BEGIN_OBJECT || Core.isSubClassOf(Primitive.entityName, target.getType())) {
+			readJsonDataIntoMendixObject(context, reader.readValue(), target, autoResolveReferences);
+			return;
+		}
+		
+		checkDataAccess(context, target);
+		
+		Map<String, String> attributeNameMap = buildAttributeNameMap(target.getMetaObject());
+		
+		reader.beginObject();
+		while(reader.peek() != Token.END_OBJECT) {
+			String attr = reader.nextName();
+			String targetattr =  attributeNameMap.get(attr.toLowerCase().replaceAll("[^a-zA-Z0-9_]","_"));
+			
+			if (targetattr == null) {
+				if (RestServices.LOGUTIL.isDebugEnabled())
+					RestServices.LOGUTIL.debug("Skipping attribute '" + attr + "', not found in targettype: '" + target.getType() + "'");
+				reader.skipValue();
+				continue;
+			}
+			
+			IMendixObjectMember<?> member = target.getMember(context, targetattr);
+			
+			if (member.isVirtual())
+				reader.skipValue();
+			
+			//Reference
+			else if (member instanceof MendixObjectReference) {
+				if (reader.peek() == Token.NULL)
+					reader.skipValue();
+				else {
+					String otherSideType = target.getMetaObject().getMetaAssociationParent(targetattr).getChild().getName();
+					((MendixObjectReference)member).setValue(context, readJsonDataIntoMendixObject(context, reader, otherSideType, autoResolveReferences));
+				}
+			}
+			
+			//ReferenceSet
+			else if (member instanceof MendixObjectReferenceSet){
+				String otherSideType = target.getMetaObject().getMetaAssociationParent(targetattr).getChild().getName();
+				List<IMendixIdentifier> ids = new ArrayList<IMendixIdentifier>();
+				
+				reader.beginArray();
+				while(reader.peek() != Token.END_ARRAY) {
+					IMendixIdentifier child = readJsonDataIntoMendixObject(context, reader, otherSideType, autoResolveReferences);
+					ids.add(Core.createMendixIdentifier(child.toLong())); //createMendixIdentifier works around support ticket 102188
+				}
+				reader.endArray();
+				
+				((MendixObjectReferenceSet)member).setValue(context, ids);
+			}
+			
+			//Primitive member
+			else if (target.hasMember(targetattr)){
+				IMetaPrimitive primitive = target.getMetaObject().getMetaPrimitive(targetattr);
+				Object value = reader.readValue();
+				if (primitive.getType() != PrimitiveType.AutoNumber)
+					target.setValue(context, targetattr, jsonValueToPrimitive(primitive, value, attr));
+			}
+			
+			else
+				reader.skipValue();
+		}
+		reader.endObject();
+		
+		commit(context, target);
+	}
+	
+	private static IMendixIdentifier readJsonDataIntoMendixObject(IContext context,
+			JsonStreamReader reader, String targetType, boolean autoResolveReferences) throws Exception {
+		if (reader.peek() != Token.BEGIN_OBJECT)
+			return readJsonDataIntoMendixObject(context, reader.readValue(), targetType, autoResolveReferences);
+		
+		IMendixObject target = Core.instantiate(context, targetType);
+		readJsonDataIntoMendixObject(context, reader, target, autoResolveReferences);
+		return target.getId();
+	}
+	
+	private static void checkDataAccess(IContext context, IMendixObject target) {
+		if (!Utils.hasDataAccess(target.getMetaObject(), context))
+			throw new IllegalStateException("During JSON deserialization: Object of type '" + target.getType() + "' cannot be altered by users with role(s) " + context.getSession().getUserRolesNames() + ". Please check the security rules");
+	}
+	
 	private static void readJsonObjectIntoMendixObject(IContext context, JSONObject object, IMendixObject target, boolean autoResolve) throws JSONException, Exception {
 		Iterator<String> it = object.keys();
 
@@ -136,7 +323,7 @@ public class JsonDeserializer {
 					target.setValue(context, targetattr, jsonAttributeToPrimitive(primitive, object, attr));
 			}
 		}
-		Core.commit(context, target);
+		commit(context, target);
 	}
 
 	private static final Map<String, Map<String,String>> metaAttributeMaps = new HashMap<String, Map<String, String>>();
@@ -165,54 +352,68 @@ public class JsonDeserializer {
 		return attrMap;
 	}
 
-	@SuppressWarnings("deprecation")
 	private static Object jsonAttributeToPrimitive(IMetaPrimitive primitive, JSONObject object, String attr) throws Exception {
+		return jsonValueToPrimitive(primitive, object.opt(attr), attr);
+	}
+	
+	/**
+	 * Converts a JSON value (as found in a JSONObject) to the value to store in the given primitive. 
+	 * Follows the same coercion rules as the JSONObject getters. 
+	 */
+	@SuppressWarnings("deprecation")
+	private static Object jsonValueToPrimitive(IMetaPrimitive primitive, Object value, String attr) throws Exception {
+		boolean isNull = value == null || value == JSONObject.NULL;
 		switch(primitive.getType()) {
 		case Currency:
 		case Float:
-			if (object.isNull(attr))
+			if (isNull)
 				return null;
-			return object.getDouble(attr);
+			return value instanceof Number ? ((Number) value).doubleValue() : Double.parseDouble(value.toString());
 		case Decimal:
-			if (object.isNull(attr))
+			if (isNull)
 				return null;
-			String asString = object.optString(attr, null);
-			if (asString != null)
-				return new BigDecimal(asString);
-			return new BigDecimal(object.getDouble(attr));
+			return new BigDecimal(value.toString());
 		case Boolean:
-			return object.getBoolean(attr);
+			return toBoolean(value, attr);
 		case DateTime: 
-			if (object.isNull(attr))
+			if (isNull)
 				return null;
-			return new Date(object.getLong(attr));
+			return new Date(value instanceof Number ? ((Number) value).longValue() : Long.parseLong(value.toString()));
 		case Enum:
 			// support for built-in BooleanValue enumeration
 			if ("RestServices.BooleanValue".equals(primitive.getEnumeration().getName())) {
-				if(object.isNull(attr))
+				if(isNull)
 					return null;
-				return object.getBoolean(attr) ? BooleanValue._true.toString() : BooleanValue._false.toString();
+				return toBoolean(value, attr) ? BooleanValue._true.toString() : BooleanValue._false.toString();
 			}
 			
 			// fall-through intentional
 		case HashString:
 		case String:
-			if (object.isNull(attr))
+			if (isNull)
 				return null;
-			return object.getString(attr);
+			return value.toString();
 		case AutoNumber:
 		case Long:
-			if (object.isNull(attr))
+			if (isNull)
 				return null;
-			return object.getLong(attr);
+			return value instanceof Number ? ((Number) value).longValue() : Long.parseLong(value.toString());
 		case Integer:
-			if (object.isNull(attr))
+			if (isNull)
 				return null;
-			return object.getInt(attr);
+			return value instanceof Number ? ((Number) value).intValue() : Integer.parseInt(value.toString());
 		case Binary:
 		default:
 			throw new Exception("Unsupported attribute type '" + primitive.getType() + "' in attribute '" + attr + "'");
 		}	
 	}
+	
+	private static boolean toBoolean(Object value, String attr) {
+		if (Boolean.TRUE.equals(value) || "true".equalsIgnoreCase(String.valueOf(value)))
+			return true;
+		if (Boolean.FALSE.equals(value) || "false".equalsIgnoreCase(String.valueOf(value)))
+			return false;
+		throw new JSONException("JSON attribute '" + attr + "' is not a Boolean");
+	}
 
 }
@@ -0,0 +1,350 @@
+package restservices.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.regex.Pattern;
+
+import com.mendix.thirdparty.org.json.JSONArray;
+import com.mendix.thirdparty.org.json.JSONException;
+import com.mendix.thirdparty.org.json.JSONObject;
+
+/**
+ * Pull parser for JSON text. In contrast to the JSONTokener, no JSONObject tree is built; the caller pulls
+ * the tokens one by one, so that large documents can be processed without materializing them.
+ *
+ * Values can still be materialized (as JSONObject, JSONArray or primitive) using readValue.
+ */
+public class JsonStreamReader implements Closeable {
+
+	public enum Token { BEGIN_OBJECT, END_OBJECT, BEGIN_ARRAY, END_ARRAY, NAME, STRING, NUMBER, BOOLEAN, NULL, END_DOCUMENT }
+
+	private static final int EMPTY_DOCUMENT = 0;
+	private static final int NONEMPTY_DOCUMENT = 1;
+	private static final int EMPTY_ARRAY = 2;
+	private static final int NONEMPTY_ARRAY = 3;
+	private static final int EMPTY_OBJECT = 4;
+	private static final int DANGLING_NAME = 5;
+	private static final int NONEMPTY_OBJECT = 6;
+
+	private static final Pattern NUMBER = Pattern.compile("-?(0|[1-9][0-9]*)(\\.[0-9]+)?([eE][+-]?[0-9]+)?");
+
+	private final Reader reader;
+	private final char[] buffer = new char[8192];
+	private int pos = 0;
+	private int limit = 0;
+
+	private int[] stack = new int[32];
+	private int stackSize = 0;
+
+	private Token peeked = null;
+	private String peekedText = null;
+	private final StringBuilder text = new StringBuilder();
+
+	public JsonStreamReader(Reader reader) {
+		if (reader == null)
+			throw new IllegalArgumentException("Reader should not be null");
+		this.reader = reader;
+		push(EMPTY_DOCUMENT);
+	}
+
+	public Token peek() throws IOException {
+		if (peeked != null)
+			return peeked;
+
+		int c;
+		switch(stack[stackSize - 1]) {
+		case EMPTY_DOCUMENT:
+			stack[stackSize - 1] = NONEMPTY_DOCUMENT;
+			break;
+		case NONEMPTY_DOCUMENT:
+			if (nextClean() != -1)
+				throw syntaxError("Expected end of document");
+			return peeked = Token.END_DOCUMENT;
+		case EMPTY_ARRAY:
+			stack[stackSize - 1] = NONEMPTY_ARRAY;
+			c = nextClean();
+			if (c == ']')
+				return peeked = Token.END_ARRAY;
+			if (c != -1)
+				pos--;
+			break;
+		case NONEMPTY_ARRAY:
+			c = nextClean();
+			if (c == ']')
+				return peeked = Token.END_ARRAY;
+			if (c != ',')
+				throw syntaxError("Expected ',' or ']'");
+			break;
+		case EMPTY_OBJECT:
+		case NONEMPTY_OBJECT:
+			c = nextClean();
+			if (c == '}')
+				return peeked = Token.END_OBJECT;
+			if (stack[stackSize - 1] == NONEMPTY_OBJECT) {
+				if (c != ',')
+					throw syntaxError("Expected ',' or '}'");
+				c = nextClean();
+			}
+			if (c != '"')
+				throw syntaxError("Expected a quoted key");
+			peekedText = readString();
+			if (nextClean() != ':')
+				throw syntaxError("Expected ':' after key '" + peekedText + "'");
+			stack[stackSize - 1] = DANGLING_NAME;
+			return peeked = Token.NAME;
+		case DANGLING_NAME:
+			stack[stackSize - 1] = NONEMPTY_OBJECT;
+			break;
+		}
+
+		c = nextClean();
+		switch(c) {
+		case '{':
+			return peeked = Token.BEGIN_OBJECT;
+		case '[':
+			return peeked = Token.BEGIN_ARRAY;
+		case '"':
+			peekedText = readString();
+			return peeked = Token.STRING;
+		case 't':
+		case 'f':
+		case 'n':
+			pos--;
+			peekedText = readLiteral();
+			if ("null".equals(peekedText))
+				return peeked = Token.NULL;
+			if ("true".equals(peekedText) || "false".equals(peekedText))
+				return peeked = Token.BOOLEAN;
+			throw syntaxError("Unexpected literal '" + peekedText + "'");
+		case -1:
+			throw syntaxError("Unexpected end of document");
+		default:
+			if (c == '-' || (c >= '0' && c <= '9')) {
+				pos--;
+				peekedText = readLiteral();
+				if (!NUMBER.matcher(peekedText).matches())
+					throw syntaxError("Illegal number '" + peekedText + "'");
+				return peeked = Token.NUMBER;
+			}
+			throw syntaxError("Unexpected character '" + (char) c + "'");
+		}
+	}
+
+	public void beginObject() throws IOException {
+		expect(Token.BEGIN_OBJECT);
+		push(EMPTY_OBJECT);
+	}
+
+	public void endObject() throws IOException {
+		expect(Token.END_OBJECT);
+		stackSize--;
+	}
+
+	public void beginArray() throws IOException {
+		expect(Token.BEGIN_ARRAY);
+		push(EMPTY_ARRAY);
+	}
+
+	public void endArray() throws IOException {
+		expect(Token.END_ARRAY);
+		stackSize--;
+	}
+
+	public String nextName() throws IOException {
+		expect(Token.NAME);
+		return peekedText;
+	}
+
+	/**
+	 * Returns the next primitive value, in the same representation as JSONObject uses:
+	 * String, Boolean, Integer, Long, Double or JSONObject.NULL
+	 */
+	public Object nextPrimitive() throws IOException {
+		Token token = peek();
+		switch(token) {
+		case STRING:
+			expect(token);
+			return peekedText;
+		case NUMBER:
+		case BOOLEAN:
+		case NULL:
+			expect(token);
+			return JSONObject.stringToValue(peekedText);
+		default:
+			throw syntaxError("Expected a primitive value, found " + token);
+		}
+	}
+
+	/**
+	 * Reads the next value, materialized as JSONObject, JSONArray or primitive.
+	 */
+	public Object readValue() throws IOException {
+		switch(peek()) {
+		case BEGIN_OBJECT:
+			JSONObject object = new JSONObject();
+			beginObject();
+			while(peek() != Token.END_OBJECT) {
+				String name = nextName();
+				object.put(name, readValue());
+			}
+			endObject();
+			return object;
+		case BEGIN_ARRAY:
+			JSONArray array = new JSONArray();
+			beginArray();
+			while(peek() != Token.END_ARRAY)
+				array.put(readValue());
+			endArray();
+			return array;
+		default:
+			return nextPrimitive();
+		}
+	}
+
+	public void skipValue() throws IOException {
+		int depth = 0;
+		do {
+			Token token = peek();
+			switch(token) {
+			case BEGIN_OBJECT:
+				beginObject();
+				depth++;
+				break;
+			case BEGIN_ARRAY:
+				beginArray();
+				depth++;
+				break;
+			case END_OBJECT:
+				endObject();
+				depth--;
+				break;
+			case END_ARRAY:
+				endArray();
+				depth--;
+				break;
+			case END_DOCUMENT:
+				throw syntaxError("Unexpected end of document");
+			default:
+				expect(token);
+			}
+		} while (depth > 0);
+	}
+
+	@Override
+	public void close() throws IOException {
+		peeked = null;
+		stackSize = 0;
+		reader.close();
+	}
+
+	private void expect(Token token) throws IOException {
+		Token actual = peek();
+		if (actual != token)
+			throw syntaxError("Expected " + token + " but found " + actual);
+		peeked = null;
+	}
+
+	private void push(int scope) {
+		if (stackSize == stack.length) {
+			int[] newStack = new int[stackSize * 2];
+			System.arraycopy(stack, 0, newStack, 0, stackSize);
+			stack = newStack;
+		}
+		stack[stackSize++] = scope;
+	}
+
+	private boolean fill() throws IOException {
+		limit = reader.read(buffer, 0, buffer.length);
+		pos = 0;
+		if (limit < 0)
+			limit = 0;
+		return limit > 0;
+	}
+
+	private int read() throws IOException {
+		if (pos == limit && !fill())
+			return -1;
+		return buffer[pos++];
+	}
+
+	private int nextClean() throws IOException {
+		for(;;) {
+			int c = read();
+			if (c != ' ' && c != '\t' && c != '\r' && c != '\n')
+				return c;
+		}
+	}
+
+	private String readLiteral() throws IOException {
+		text.setLength(0);
+		for(;;) {
+			if (pos == limit && !fill())
+				break;
+			char c = buffer[pos];
+			if ((c >= '0' && c <= '9') || (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '-' || c == '+' || c == '.') {
+				text.append(c);
+				pos++;
+			}
+			else
+				break;
+		}
+		return text.toString();
+	}
+
+	private String readString() throws IOException {
+		text.setLength(0);
+		for(;;) {
+			int c = read();
+			switch(c) {
+			case -1:
+				throw syntaxError("Unterminated string");
+			case '"':
+				return text.toString();
+			case '\\':
+				c = read();
+				switch(c) {
+				case 'b':
+					text.append('\b');
+					break;
+				case 't':
+					text.append('\t');
+					break;
+				case 'n':
+					text.append('\n');
+					break;
+				case 'f':
+					text.append('\f');
+					break;
+				case 'r':
+					text.append('\r');
+					break;
+				case 'u':
+					int value = 0;
+					for(int i = 0; i < 4; i++) {
+						int digit = Character.digit(read(), 16);
+						if (digit < 0)
+							throw syntaxError("Illegal unicode escape");
+						value = (value << 4) + digit;
+					}
+					text.append((char) value);
+					break;
+				case '"':
+				case '\\':
+				case '/':
+					text.append((char) c);
+					break;
+				default:
+					throw syntaxError("Illegal escape");
+				}
+				break;
+			default:
+				text.append((char) c);
+			}
+		}
+	}
+
+	private JSONException syntaxError(String message) {
+		return new JSONException(message + " at position " + pos + " of the current buffer");
+	}
+}
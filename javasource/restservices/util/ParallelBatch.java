@@ -0,0 +1,101 @@
+package restservices.util;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Processes items in chunks on a fixed amount of worker threads. Items are added from a single thread, which is throttled
+ * if the workers cannot keep up, so that only a limited amount of items is kept in memory.
+ *
+ * The first failure of a chunk is rethrown by add or finish. Since process is invoked on a worker thread, it should not
+ * use the context of the thread that adds the items, but create its own.
+ */
+public abstract class ParallelBatch<T> {
+
+	private final ExecutorService workers;
+	private final int threads;
+	private final int chunkSize;
+	private final LinkedList<Future<?>> running = new LinkedList<Future<?>>();
+	private List<T> chunk;
+
+	public ParallelBatch(String name, int threads, int chunkSize) {
+		if (threads < 1 || chunkSize < 1)
+			throw new IllegalArgumentException("Amount of threads and chunk size should be positive");
+		this.threads = threads;
+		this.chunkSize = chunkSize;
+		this.chunk = new ArrayList<T>(chunkSize);
+		this.workers = Executors.newFixedThreadPool(threads, new ThreadFactoryBuilder()
+				.setNameFormat(name + " #%d")
+				.setDaemon(true)
+				.build());
+	}
+
+	protected abstract void process(List<T> items) throws Exception;
+
+	public void add(T item) throws Exception {
+		chunk.add(item);
+		if (chunk.size() >= chunkSize)
+			dispatch();
+	}
+
+	/**
+	 * Processes the remaining items, and waits until all items are processed.
+	 */
+	public void finish() throws Exception {
+		try {
+			dispatch();
+			while(!running.isEmpty())
+				waitFor(running.removeFirst());
+		}
+		finally {
+			workers.shutdownNow();
+		}
+	}
+
+	/**
+	 * Stops processing, should be called if finish is not reached.
+	 */
+	public void abort() {
+		workers.shutdownNow();
+	}
+
+	private void dispatch() throws Exception {
+		if (chunk.isEmpty())
+			return;
+
+		final List<T> items = chunk;
+		chunk = new ArrayList<T>(chunkSize);
+
+		//Keep all workers busy, but don't run too far ahead
+		while(running.size() >= threads * 2)
+			waitFor(running.removeFirst());
+
+		running.add(workers.submit(new Callable<Boolean>() {
+
+			@Override
+			public Boolean call() throws Exception {
+				process(items);
+				return true;
+			}
+		}));
+	}
+
+	private static void waitFor(Future<?> future) throws Exception {
+		try {
+			future.get();
+		}
+		catch(ExecutionException e) {
+			if (e.getCause() instanceof Exception)
+				throw (Exception) e.getCause();
+			throw e;
+		}
+	}
+}
@@ -0,0 +1,49 @@
+package restservices.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.mendix.logging.ILogNode;
+
+/**
+ * Logs the progress and throughput of a long running operation, at most once per interval. Thread safe.
+ */
+public class ProgressLogger {
+
+	private final ILogNode log;
+	private final String description;
+	private final long intervalMs;
+	private final long start = System.currentTimeMillis();
+	private final AtomicLong processed = new AtomicLong();
+	private final AtomicLong lastLogged = new AtomicLong(start);
+
+	public ProgressLogger(ILogNode log, String description, long intervalMs) {
+		this.log = log;
+		this.description = description;
+		this.intervalMs = intervalMs;
+	}
+
+	public void add(long amount) {
+		long total = processed.addAndGet(amount);
+		long now = System.currentTimeMillis();
+		long last = lastLogged.get();
+		if (now - last >= intervalMs && lastLogged.compareAndSet(last, now))
+			log.info(description + ": " + total + " processed (" + getThroughput(total, now) + " per second)");
+	}
+
+	public long getProcessed() {
+		return processed.get();
+	}
+
+	/**
+	 * Logs the total amount processed and the average throughput
+	 */
+	public void done() {
+		long total = processed.get();
+		long now = System.currentTimeMillis();
+		log.info(description + ": DONE, " + total + " processed in " + ((now - start) / 1000) + " seconds (" + getThroughput(total, now) + " per second)");
+	}
+
+	private long getThroughput(long total, long now) {
+		return total * 1000 / Math.max(1, now - start);
+	}
+}
@@ -0,0 +1,58 @@
+package restservices.util;
+
+import java.io.UnsupportedEncodingException;
+
+import com.mendix.thirdparty.org.json.JSONTokener;
+
+import restservices.RestServices;
+
+/**
+ * JSON text that is already serialized, for example the JSON stored in a ChangeItem.
+ * The DataWriter writes it as is to JSON responses, so that it doesn't need to be parsed and serialized again.
+ */
+public class RawJson {
+
+	private final String json;
+	private final byte[] bytes;
+
+	public RawJson(String json) {
+		if (json == null)
+			throw new IllegalArgumentException("JSON should not be null");
+		this.json = json;
+		this.bytes = null;
+	}
+
+	/**
+	 * @param utf8Bytes UTF-8 encoded JSON text
+	 */
+	public RawJson(byte[] utf8Bytes) {
+		if (utf8Bytes == null)
+			throw new IllegalArgumentException("JSON should not be null");
+		this.json = null;
+		this.bytes = utf8Bytes;
+	}
+
+	public byte[] getBytes() {
+		try {
+			return bytes != null ? bytes : json.getBytes(RestServices.UTF8);
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Parses the JSON text into a JSONObject, JSONArray or primitive value.
+	 */
+	public Object parse() {
+		return new JSONTokener(toString()).nextValue();
+	}
+
+	@Override
+	public String toString() {
+		try {
+			return json != null ? json : new String(bytes, RestServices.UTF8);
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -0,0 +1,234 @@
+package restservices.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Finds the values that were registered for the uri templates that match a path. The templates are compiled into a tree
+ * of path segments, so the costs of a lookup depend on the depth of the path, not on the amount of templates.
+ *
+ * Matches the same paths as UriTemplate: literal segments are compared case insensitive, a template variable matches
+ * a (non empty) path segment, and leading and trailing slashes are ignored. Segments that mix literals and variables,
+ * such as '{first}-{last}', are matched using a regular expression.
+ *
+ * Routers are immutable, use a Builder to create a new router if the templates change.
+ */
+public class UriRouter<T> {
+
+	private static final Pattern PARAMNAME = Pattern.compile(UriTemplate.PARAMNAME_REGEX);
+	private static final Pattern VARIABLE = Pattern.compile("^" + UriTemplate.PARAMNAME_REGEX + "$");
+	private static final Pattern VARIABLE_VALUE = Pattern.compile(UriTemplate.QUERYPARAM_REGEX);
+
+	public static class Match<T> {
+		private final int index;
+		private final T value;
+		private final Map<String, String> params;
+
+		Match(int index, T value, Map<String, String> params) {
+			this.index = index;
+			this.value = value;
+			this.params = params;
+		}
+
+		public T getValue() {
+			return value;
+		}
+
+		/**
+		 * The (url decoded) values of the template variables
+		 */
+		public Map<String, String> getParams() {
+			return params;
+		}
+	}
+
+	public static class Builder<T> {
+		private final Node<T> root = new Node<T>();
+		private int nextIndex = 0;
+		private boolean built = false;
+
+		public Builder<T> add(String template, T value) {
+			Preconditions.checkNotNull(template);
+			Preconditions.checkState(!built, "Router was built already");
+
+			Node<T> node = root;
+			List<String> paramNames = new ArrayList<String>();
+
+			for(String segment : split(template)) {
+				if (VARIABLE.matcher(segment).matches()) {
+					Matcher m = PARAMNAME.matcher(segment);
+					m.find();
+					paramNames.add(m.group(1));
+					if (node.variable == null)
+						node.variable = new Node<T>();
+					node = node.variable;
+				}
+				else if (PARAMNAME.matcher(segment).find()) {
+					String regex = compileSegment(segment, paramNames);
+					Node<T> child = node.patterns.get(regex);
+					if (child == null) {
+						child = new Node<T>(Pattern.compile(regex, Pattern.CASE_INSENSITIVE));
+						node.patterns.put(regex, child);
+					}
+					node = child;
+				}
+				else {
+					String key = segment.toLowerCase(Locale.ROOT);
+					Node<T> child = node.literals.get(key);
+					if (child == null) {
+						child = new Node<T>();
+						node.literals.put(key, child);
+					}
+					node = child;
+				}
+			}
+
+			node.entries.add(new Entry<T>(nextIndex++, value, paramNames));
+			return this;
+		}
+
+		public UriRouter<T> build() {
+			built = true;
+			return new UriRouter<T>(root);
+		}
+	}
+
+	private static class Entry<T> {
+		final int index;
+		final T value;
+		final List<String> paramNames;
+
+		Entry(int index, T value, List<String> paramNames) {
+			this.index = index;
+			this.value = value;
+			this.paramNames = paramNames;
+		}
+	}
+
+	private static class Node<T> {
+		final Map<String, Node<T>> literals = new HashMap<String, Node<T>>();
+		final Map<String, Node<T>> patterns = new LinkedHashMap<String, Node<T>>();
+		final Pattern pattern;
+		Node<T> variable;
+		final List<Entry<T>> entries = new ArrayList<Entry<T>>();
+
+		Node() {
+			this(null);
+		}
+
+		Node(Pattern pattern) {
+			this.pattern = pattern;
+		}
+	}
+
+	private final Node<T> root;
+
+	private UriRouter(Node<T> root) {
+		this.root = root;
+	}
+
+	public static <T> Builder<T> builder() {
+		return new Builder<T>();
+	}
+
+	/**
+	 * Returns the values of all templates that match the path, in the order in which they were added
+	 */
+	public List<Match<T>> match(String path) {
+		Preconditions.checkNotNull(path);
+
+		List<Entry<T>> entries = new ArrayList<Entry<T>>();
+		List<List<String>> values = new ArrayList<List<String>>();
+		collect(root, split(path), 0, new ArrayList<String>(), entries, values);
+
+		List<Match<T>> result = new ArrayList<Match<T>>(entries.size());
+		for(int i = 0; i < entries.size(); i++) {
+			Entry<T> entry = entries.get(i);
+			Map<String, String> params = new HashMap<String, String>();
+			for(int j = 0; j < entry.paramNames.size(); j++)
+				params.put(entry.paramNames.get(j), Utils.urlDecode(values.get(i).get(j)));
+			result.add(new Match<T>(entry.index, entry.value, params));
+		}
+
+		if (result.size() > 1) {
+			Collections.sort(result, new Comparator<Match<T>>() {
+
+				@Override
+				public int compare(Match<T> a, Match<T> b) {
+					return Integer.compare(a.index, b.index);
+				}
+			});
+		}
+		return result;
+	}
+
+	private static <T> void collect(Node<T> node, String[] segments, int depth, List<String> values, List<Entry<T>> entries, List<List<String>> entryValues) {
+		if (depth == segments.length) {
+			for(Entry<T> entry : node.entries) {
+				entries.add(entry);
+				entryValues.add(new ArrayList<String>(values));
+			}
+			return;
+		}
+
+		String segment = segments[depth];
+
+		Node<T> literal = node.literals.get(segment.toLowerCase(Locale.ROOT));
+		if (literal != null)
+			collect(literal, segments, depth + 1, values, entries, entryValues);
+
+		if (node.variable != null && VARIABLE_VALUE.matcher(segment).matches()) {
+			values.add(segment);
+			collect(node.variable, segments, depth + 1, values, entries, entryValues);
+			values.remove(values.size() - 1);
+		}
+
+		for(Node<T> child : node.patterns.values()) {
+			Matcher m = child.pattern.matcher(segment);
+			if (m.matches()) {
+				for(int i = 1; i <= m.groupCount(); i++)
+					values.add(m.group(i));
+				collect(child, segments, depth + 1, values, entries, entryValues);
+				for(int i = 1; i <= m.groupCount(); i++)
+					values.remove(values.size() - 1);
+			}
+		}
+	}
+
+	private static String compileSegment(String segment, List<String> paramNames) {
+		StringBuilder regex = new StringBuilder();
+		Matcher m = PARAMNAME.matcher(segment);
+		int last = 0;
+		while(m.find()) {
+			regex.append(Pattern.quote(segment.substring(last, m.start()))).append(UriTemplate.QUERYPARAM_REGEX);
+			paramNames.add(m.group(1));
+			last = m.end();
+		}
+		return regex.append(Pattern.quote(segment.substring(last))).toString();
+	}
+
+	/**
+	 * Splits the path into segments, ignoring leading and trailing slashes
+	 */
+	private static String[] split(String path) {
+		int start = 0, end = path.length();
+		while(start < end && path.charAt(start) == '/')
+			start += 1;
+		while(end > start && path.charAt(end - 1) == '/')
+			end -= 1;
+
+		if (start == end)
+			return new String[0];
+		return path.substring(start, end).split("/", -1);
+	}
+}
@@ -14,10 +14,10 @@ import com.google.common.collect.Lists;
 
 public class UriTemplate {
 
-	private static final String PARAMNAME_REGEX = "\\{([a-zA-Z_0-9]+)\\}";
+	static final String PARAMNAME_REGEX = "\\{([a-zA-Z_0-9]+)\\}";
 	
 	// http://tools.ietf.org/html/rfc3986#section-2.2
-	private static final String QUERYPARAM_REGEX = "([^:/?#\\[\\]@!$&'()*+,;=]+?)";
+	static final String QUERYPARAM_REGEX = "([^:/?#\\[\\]@!$&'()*+,;=]+?)";
 	Pattern regex;
 	List<String> paramNames = Lists.newArrayList();
 	private String pathString;
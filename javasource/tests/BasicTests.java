@@ -3,7 +3,9 @@ package tests;
 import static org.junit.Assert.assertEquals;
 
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import com.mendix.thirdparty.org.json.JSONArray;
 import com.mendix.thirdparty.org.json.JSONObject;
@@ -328,6 +330,54 @@ public class BasicTests extends TestBase {
 		simpleList();
 	}
 	
+	@Test
+	public void cursorList() throws Exception {
+		IContext c = Core.createSystemContext();
+		Set<String> expected = new HashSet<String>();
+		for(int i = 0; i < 12; i++) {
+			Task t = createTask(c, "Task " + i, false);
+			publishTask(c, t, false);
+			expected.add(baseUrl + t.getNr());
+		}
+		
+		//follow the next links, pages of 5, 5 and 2 items
+		List<String> listed = new ArrayList<String>();
+		String url = baseUrl + "?limit=5";
+		int pages = 0;
+		while(url != null) {
+			Assert.assertTrue("Too many pages", pages < 3);
+			RequestResult page = RestConsumer.request(c, HttpMethod.GET, url, null, null, false);
+			pages += 1;
+			
+			JSONArray ar = new JSONArray(page.getResponseBody());
+			Assert.assertEquals(pages < 3 ? 5 : 2, ar.length());
+			for(int i = 0; i < ar.length(); i++)
+				listed.add(ar.getString(i));
+			
+			String link = RestConsumer.getResponseHeaderFromRequestResult(page, RestServices.HEADER_LINK);
+			if (link == null)
+				url = null;
+			else {
+				Assert.assertTrue(link.endsWith("; rel=\"next\""));
+				url = link.substring(link.indexOf('<') + 1, link.indexOf('>'));
+			}
+		}
+		
+		//each item exactly once, and no next link on the last page
+		Assert.assertEquals(3, pages);
+		Assert.assertEquals(expected.size(), listed.size());
+		Assert.assertEquals(expected, new HashSet<String>(listed));
+	}
+	
+	@Test
+	public void cursorListFromIndex() throws Exception {
+		def.setEnableChangeLog(true);
+		def.setSourceConstraint("");
+		def.commit();
+		
+		cursorList();
+	}
+	
 	@Test
 	public void listWithSmallBatchsize() throws Exception {
 		int bs = RestServices.BATCHSIZE;
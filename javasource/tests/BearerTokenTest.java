@@ -0,0 +1,163 @@
+package tests;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import restservices.RestServices;
+import restservices.publish.BearerToken;
+import restservices.publish.BearerToken.Claims;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.BaseEncoding;
+
+public class BearerTokenTest {
+
+	private static final String SECRET = "BearerTokenTest secret";
+	private static final BaseEncoding BASE64URL = BaseEncoding.base64Url().omitPadding();
+	private static final String HS256 = "{\"alg\":\"HS256\",\"typ\":\"JWT\"}";
+
+	@Before
+	public void setSecret() {
+		RestServices.BEARER_TOKEN_SECRET = SECRET;
+	}
+
+	@After
+	public void resetSecret() {
+		RestServices.BEARER_TOKEN_SECRET = null;
+	}
+
+	@Test
+	public void testCreateAndVerify() {
+		Claims claims = BearerToken.verify(BearerToken.create("alice", null, 60));
+		Assert.assertNotNull(claims);
+		Assert.assertEquals("alice", claims.getUsername());
+		Assert.assertTrue(claims.allowsRole("Administrator"));
+
+		Assert.assertNotNull(BearerToken.verify(" " + BearerToken.create("alice", null, 60) + " "));
+		Assert.assertNotNull(BearerToken.verify(token(HS256, "{\"sub\":\"alice\",\"exp\":" + (now() + 60) + "}", SECRET)));
+	}
+
+	@Test
+	public void testRoles() {
+		Claims claims = BearerToken.verify(BearerToken.create("bob", ImmutableList.of("Administrator", "User"), 60));
+		Assert.assertNotNull(claims);
+		Assert.assertTrue(claims.allowsRole("Administrator"));
+		Assert.assertTrue(claims.allowsRole("User"));
+		Assert.assertFalse(claims.allowsRole("Guest"));
+		Assert.assertFalse(claims.allowsRole("administrator"));
+
+		//an empty list of roles allows no roles at all, in contrast to no roles claim
+		claims = BearerToken.verify(BearerToken.create("bob", ImmutableList.<String>of(), 60));
+		Assert.assertNotNull(claims);
+		Assert.assertFalse(claims.allowsRole("User"));
+
+		claims = BearerToken.verify(token(HS256, "{\"sub\":\"bob\",\"exp\":" + (now() + 60) + ",\"roles\":[\"User\"]}", SECRET));
+		Assert.assertTrue(claims.allowsRole("User"));
+		Assert.assertFalse(claims.allowsRole("Administrator"));
+	}
+
+	@Test
+	public void testBadSignature() {
+		String token = BearerToken.create("alice", null, 60);
+		String[] parts = token.split("\\.");
+
+		//signed with another secret
+		Assert.assertNull(BearerToken.verify(token(HS256, "{\"sub\":\"alice\",\"exp\":" + (now() + 60) + "}", "other secret")));
+
+		//tampered claims
+		String tampered = BASE64URL.encode(("{\"sub\":\"admin\",\"exp\":" + (now() + 60) + "}").getBytes(Charsets.UTF_8));
+		Assert.assertNull(BearerToken.verify(parts[0] + "." + tampered + "." + parts[2]));
+
+		//tampered signature
+		byte[] signature = BASE64URL.decode(parts[2]);
+		signature[0] ^= 1;
+		Assert.assertNull(BearerToken.verify(parts[0] + "." + parts[1] + "." + BASE64URL.encode(signature)));
+		Assert.assertNull(BearerToken.verify(parts[0] + "." + parts[1] + "." + parts[2].substring(1)));
+		Assert.assertNull(BearerToken.verify(parts[0] + "." + parts[1] + "."));
+
+		//secret changed after the token was issued
+		RestServices.BEARER_TOKEN_SECRET = "new secret";
+		Assert.assertNull(BearerToken.verify(token));
+	}
+
+	@Test
+	public void testAlgorithms() {
+		String claims = "{\"sub\":\"alice\",\"exp\":" + (now() + 60) + "}";
+
+		//unsigned tokens
+		String none = BASE64URL.encode("{\"alg\":\"none\",\"typ\":\"JWT\"}".getBytes(Charsets.UTF_8));
+		Assert.assertNull(BearerToken.verify(none + "." + BASE64URL.encode(claims.getBytes(Charsets.UTF_8)) + "."));
+
+		//valid signatures, but the header claims another algorithm
+		Assert.assertNull(BearerToken.verify(token("{\"alg\":\"none\",\"typ\":\"JWT\"}", claims, SECRET)));
+		Assert.assertNull(BearerToken.verify(token("{\"alg\":\"HS512\",\"typ\":\"JWT\"}", claims, SECRET)));
+		Assert.assertNull(BearerToken.verify(token("{\"alg\":\"RS256\",\"typ\":\"JWT\"}", claims, SECRET)));
+		Assert.assertNull(BearerToken.verify(token("{\"alg\":\"hs256\",\"typ\":\"JWT\"}", claims, SECRET)));
+		Assert.assertNull(BearerToken.verify(token("{\"typ\":\"JWT\"}", claims, SECRET)));
+	}
+
+	@Test
+	public void testExpiry() {
+		Assert.assertNull(BearerToken.verify(BearerToken.create("alice", null, -10)));
+		Assert.assertNull(BearerToken.verify(token(HS256, "{\"sub\":\"alice\",\"exp\":" + (now() - 10) + "}", SECRET)));
+		Assert.assertNull(BearerToken.verify(token(HS256, "{\"sub\":\"alice\"}", SECRET)));
+		Assert.assertNull(BearerToken.verify(token(HS256, "{\"sub\":\"alice\",\"exp\":\"tomorrow\"}", SECRET)));
+	}
+
+	@Test
+	public void testInvalidTokens() {
+		//missing or empty user
+		Assert.assertNull(BearerToken.verify(token(HS256, "{\"exp\":" + (now() + 60) + "}", SECRET)));
+		Assert.assertNull(BearerToken.verify(token(HS256, "{\"sub\":\"\",\"exp\":" + (now() + 60) + "}", SECRET)));
+
+		//malformed
+		Assert.assertNull(BearerToken.verify(""));
+		Assert.assertNull(BearerToken.verify("token"));
+		Assert.assertNull(BearerToken.verify("a.b"));
+		Assert.assertNull(BearerToken.verify("a.b.c.d"));
+		Assert.assertNull(BearerToken.verify("!!.!!.!!"));
+		Assert.assertNull(BearerToken.verify(token(HS256, "not json", SECRET)));
+		Assert.assertNull(BearerToken.verify(token("not json", "{\"sub\":\"alice\",\"exp\":" + (now() + 60) + "}", SECRET)));
+	}
+
+	@Test
+	public void testDisabled() {
+		String token = BearerToken.create("alice", null, 60);
+
+		RestServices.BEARER_TOKEN_SECRET = null;
+		Assert.assertNull(BearerToken.verify(token));
+
+		RestServices.BEARER_TOKEN_SECRET = "";
+		Assert.assertNull(BearerToken.verify(token));
+
+		try {
+			BearerToken.create("alice", null, 60);
+			Assert.fail("Expected tokens not to be created without secret");
+		}
+		catch (IllegalStateException e) {
+			//expected
+		}
+	}
+
+	private static long now() {
+		return System.currentTimeMillis() / 1000;
+	}
+
+	private static String token(String header, String claims, String secret) {
+		String content = BASE64URL.encode(header.getBytes(Charsets.UTF_8)) + "." + BASE64URL.encode(claims.getBytes(Charsets.UTF_8));
+		try {
+			Mac mac = Mac.getInstance("HmacSHA256");
+			mac.init(new SecretKeySpec(secret.getBytes(Charsets.UTF_8), "HmacSHA256"));
+			return content + "." + BASE64URL.encode(mac.doFinal(content.getBytes(Charsets.UTF_8)));
+		}
+		catch (Exception e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -0,0 +1,161 @@
+package tests;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SortedMap;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import restservices.publish.ChangeSequencer;
+import restservices.util.RawJson;
+
+import com.google.common.collect.ImmutableList;
+
+public class ChangeSequencerTest {
+
+	@Test
+	public void testLocalInOrder() {
+		ChangeSequencer sequencer = new ChangeSequencer(10, false);
+		Assert.assertEquals(Long.MAX_VALUE, sequencer.getStoredSequenceNr());
+
+		sequencer.assign(11);
+		sequencer.assign(12);
+		Assert.assertEquals(10, sequencer.getStoredSequenceNr());
+		Assert.assertTrue(sequencer.isKnown(11));
+		Assert.assertFalse(sequencer.isKnown(13));
+
+		//12 waits for 11
+		Assert.assertEquals(ImmutableList.of(), sequenceNrs(sequencer.complete(12, json(12))));
+		Assert.assertFalse(sequencer.isWaiting());
+		Assert.assertEquals(10, sequencer.getPublishedSequenceNr());
+
+		SortedMap<Long, RawJson> published = sequencer.complete(11, json(11));
+		Assert.assertEquals(ImmutableList.of(11L, 12L), sequenceNrs(published));
+		Assert.assertEquals("{\"seq\":12}", published.get(12L).toString());
+		Assert.assertEquals(12, sequencer.getPublishedSequenceNr());
+		Assert.assertEquals(Long.MAX_VALUE, sequencer.getStoredSequenceNr());
+		Assert.assertTrue(sequencer.isKnown(11));
+	}
+
+	@Test
+	public void testLocalSkipped() {
+		ChangeSequencer sequencer = new ChangeSequencer(10, false);
+		sequencer.assign(11);
+		sequencer.assign(12);
+		sequencer.assign(13);
+
+		//changes that were rolled back or not published are not returned, but do not block later changes
+		Assert.assertEquals(ImmutableList.of(), sequenceNrs(sequencer.complete(12, null)));
+		Assert.assertEquals(ImmutableList.of(), sequenceNrs(sequencer.complete(11, null)));
+		Assert.assertEquals(12, sequencer.getPublishedSequenceNr());
+		Assert.assertEquals(ImmutableList.of(13L), sequenceNrs(sequencer.complete(13, json(13))));
+
+		//numbers should be assigned before they are completed, and only be completed once
+		try {
+			sequencer.complete(13, json(13));
+			Assert.fail("Expected sequence number not to be completed twice");
+		}
+		catch (IllegalStateException e) {
+			//expected
+		}
+		try {
+			sequencer.complete(20, json(20));
+			Assert.fail("Expected unassigned sequence number not to be completed");
+		}
+		catch (IllegalStateException e) {
+			//expected
+		}
+	}
+
+	@Test
+	public void testResolved() {
+		ChangeSequencer sequencer = new ChangeSequencer(10, true);
+		Assert.assertEquals(10, sequencer.getResolvedSequenceNr());
+		Assert.assertEquals(10, sequencer.getConfirmedSequenceNr());
+
+		//all numbers below an assigned number are stored or rolled back
+		sequencer.assign(15);
+		Assert.assertEquals(14, sequencer.getResolvedSequenceNr());
+		sequencer.complete(15, null);
+		Assert.assertEquals(15, sequencer.getResolvedSequenceNr());
+
+		sequencer.receive(20, json(20));
+		Assert.assertEquals(20, sequencer.getResolvedSequenceNr());
+		Assert.assertEquals(10, sequencer.getConfirmedSequenceNr());
+	}
+
+	@Test
+	public void testOtherNodes() {
+		ChangeSequencer sequencer = new ChangeSequencer(10, true);
+
+		Assert.assertEquals(ImmutableList.of(11L), sequenceNrs(sequencer.receive(11, json(11))));
+		Assert.assertEquals(11, sequencer.getStoredSequenceNr());
+
+		//12 might still be stored by another node
+		Assert.assertEquals(ImmutableList.of(), sequenceNrs(sequencer.receive(13, json(13))));
+		Assert.assertTrue(sequencer.isWaiting());
+		Assert.assertEquals(11, sequencer.getPublishedSequenceNr());
+		Assert.assertEquals(11, sequencer.getStoredSequenceNr());
+
+		//received after all
+		Assert.assertEquals(ImmutableList.of(12L, 13L), sequenceNrs(sequencer.receive(12, json(12))));
+		Assert.assertFalse(sequencer.isWaiting());
+		Assert.assertEquals(13, sequencer.getStoredSequenceNr());
+
+		//confirmed by a read of the change log that 15 was not stored
+		Assert.assertEquals(ImmutableList.of(), sequenceNrs(sequencer.receive(16, json(16))));
+		Assert.assertEquals(ImmutableList.of(), sequenceNrs(sequencer.confirm(14)));
+		Assert.assertEquals(ImmutableList.of(16L), sequenceNrs(sequencer.confirm(15)));
+		Assert.assertEquals(16, sequencer.getConfirmedSequenceNr());
+	}
+
+	@Test
+	public void testOtherNodesWithLocalChanges() {
+		ChangeSequencer sequencer = new ChangeSequencer(10, true);
+
+		sequencer.assign(12);
+		Assert.assertEquals(ImmutableList.of(), sequenceNrs(sequencer.receive(13, json(13))));
+		Assert.assertFalse(sequencer.isWaiting());
+
+		//11 is resolved, but it is not known yet whether it was stored
+		Assert.assertEquals(ImmutableList.of(), sequenceNrs(sequencer.complete(12, json(12))));
+		Assert.assertTrue(sequencer.isWaiting());
+		Assert.assertEquals(ImmutableList.of(12L, 13L), sequenceNrs(sequencer.confirm(sequencer.getResolvedSequenceNr())));
+
+		//local changes that were rolled back are skipped
+		sequencer.assign(14);
+		Assert.assertEquals(ImmutableList.of(), sequenceNrs(sequencer.receive(15, json(15))));
+		Assert.assertEquals(ImmutableList.of(15L), sequenceNrs(sequencer.complete(14, null)));
+		Assert.assertEquals(15, sequencer.getPublishedSequenceNr());
+	}
+
+	@Test
+	public void testDuplicatesIgnored() {
+		ChangeSequencer sequencer = new ChangeSequencer(10, true);
+
+		Assert.assertEquals(ImmutableList.of(), sequenceNrs(sequencer.receive(5, json(5))));
+		Assert.assertEquals(ImmutableList.of(), sequenceNrs(sequencer.receive(10, json(10))));
+		Assert.assertEquals(ImmutableList.of(11L), sequenceNrs(sequencer.receive(11, json(11))));
+		Assert.assertEquals(ImmutableList.of(), sequenceNrs(sequencer.receive(11, json(11))));
+
+		//a change that is received from the change bus and the change log is only published once
+		Assert.assertEquals(ImmutableList.of(), sequenceNrs(sequencer.receive(13, json(13))));
+		Assert.assertEquals(ImmutableList.of(), sequenceNrs(sequencer.receive(13, new RawJson("{\"seq\":-1}"))));
+		SortedMap<Long, RawJson> published = sequencer.confirm(13);
+		Assert.assertEquals(ImmutableList.of(13L), sequenceNrs(published));
+		Assert.assertEquals("{\"seq\":13}", published.get(13L).toString());
+		Assert.assertTrue(sequencer.isKnown(12));
+		Assert.assertTrue(sequencer.isKnown(13));
+		Assert.assertFalse(sequencer.isKnown(14));
+	}
+
+	private static RawJson json(long sequenceNr) {
+		return new RawJson("{\"seq\":" + sequenceNr + "}");
+	}
+
+	private static List<Long> sequenceNrs(SortedMap<Long, RawJson> changes) {
+		Assert.assertNotNull(changes);
+		return new ArrayList<Long>(changes.keySet());
+	}
+}
@@ -0,0 +1,173 @@
+package tests;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import restservices.util.JsonStreamReader;
+import restservices.util.JsonStreamReader.Token;
+
+import com.google.common.base.Strings;
+import com.mendix.thirdparty.org.json.JSONArray;
+import com.mendix.thirdparty.org.json.JSONException;
+import com.mendix.thirdparty.org.json.JSONObject;
+
+public class JsonStreamReaderTest {
+
+	@Test
+	public void testEscapes() throws Exception {
+		Assert.assertEquals("\"\\/\b\f\n\r\t", parse("\"\\\"\\\\\\/\\b\\f\\n\\r\\t\""));
+		Assert.assertEquals("a\"b", parse("\"a\\\"b\""));
+		Assert.assertEquals("", parse("\"\""));
+	}
+
+	@Test
+	public void testUnicode() throws Exception {
+		Assert.assertEquals("\u00e9\u20ac", parse("\"\\u00e9\\u20AC\""));
+		Assert.assertEquals("h\u00e9llo \u2603", parse("\"h\u00e9llo \u2603\""));
+		Assert.assertEquals("\ud83d\ude00", parse("\"\\ud83d\\ude00\""));
+		Assert.assertEquals("\u0000", parse("\"\\u0000\""));
+	}
+
+	@Test
+	public void testLiterals() throws Exception {
+		Assert.assertEquals(Boolean.TRUE, parse("true"));
+		Assert.assertEquals(Boolean.FALSE, parse(" false "));
+		Assert.assertEquals(JSONObject.NULL, parse("null"));
+	}
+
+	@Test
+	public void testNumbers() throws Exception {
+		Assert.assertEquals(0, ((Number) parse("0")).longValue());
+		Assert.assertEquals(-12, ((Number) parse("-12")).longValue());
+		Assert.assertEquals(12345678901L, ((Number) parse("12345678901")).longValue());
+		Assert.assertEquals(1.5, ((Number) parse("1.5")).doubleValue(), 0);
+		Assert.assertEquals(-0.25, ((Number) parse("-0.25")).doubleValue(), 0);
+		Assert.assertEquals(1000, ((Number) parse("1e3")).doubleValue(), 0);
+		Assert.assertEquals(0.012, ((Number) parse("1.2E-2")).doubleValue(), 0);
+		Assert.assertEquals(200, ((Number) parse("2e+2")).doubleValue(), 0);
+	}
+
+	@Test
+	public void testEmptyArraysAndObjects() throws Exception {
+		Assert.assertEquals(0, ((JSONArray) parse("[]")).length());
+		Assert.assertEquals(0, ((JSONArray) parse(" [ \n ] ")).length());
+		Assert.assertEquals(0, ((JSONObject) parse("{}")).length());
+
+		JSONObject object = (JSONObject) parse("{\"a\":[],\"b\":{}}");
+		Assert.assertEquals(0, object.getJSONArray("a").length());
+		Assert.assertEquals(0, object.getJSONObject("b").length());
+	}
+
+	@Test
+	public void testNesting() throws Exception {
+		JsonStreamReader reader = reader("{\"a\": [1, {\"b\": [[], {}]}], \"skipped\": {\"x\": [true, [null]]}, \"c\": {\"d\": \"e\"}}");
+		reader.beginObject();
+		Assert.assertEquals("a", reader.nextName());
+		reader.beginArray();
+		Assert.assertEquals(1, ((Number) reader.nextPrimitive()).intValue());
+		Assert.assertEquals(Token.BEGIN_OBJECT, reader.peek());
+		JSONObject item = (JSONObject) reader.readValue();
+		Assert.assertEquals(2, item.getJSONArray("b").length());
+		Assert.assertEquals(Token.END_ARRAY, reader.peek());
+		reader.endArray();
+		Assert.assertEquals("skipped", reader.nextName());
+		reader.skipValue();
+		Assert.assertEquals("c", reader.nextName());
+		reader.beginObject();
+		Assert.assertEquals("d", reader.nextName());
+		Assert.assertEquals("e", reader.nextPrimitive());
+		reader.endObject();
+		reader.endObject();
+		Assert.assertEquals(Token.END_DOCUMENT, reader.peek());
+		reader.close();
+
+		//deeper than the initial stack
+		String deep = Strings.repeat("[", 100) + "1" + Strings.repeat("]", 100);
+		Object value = parse(deep);
+		for(int i = 0; i < 99; i++)
+			value = ((JSONArray) value).get(0);
+		Assert.assertEquals(1, ((JSONArray) value).getInt(0));
+	}
+
+	@Test
+	public void testLargeValuesSpanBuffers() throws Exception {
+		String large = Strings.repeat("abcdefghij", 2000);
+		JSONArray array = (JSONArray) parse("[\"" + large + "\", 1234567890, \"" + large + "\"]");
+		Assert.assertEquals(3, array.length());
+		Assert.assertEquals(large, array.getString(0));
+		Assert.assertEquals(1234567890L, array.getLong(1));
+		Assert.assertEquals(large, array.getString(2));
+	}
+
+	@Test
+	public void testMalformed() throws Exception {
+		//bare words and invalid literals
+		assertMalformed("abc");
+		assertMalformed("[tru]");
+		assertMalformed("[truex]");
+		assertMalformed("[nul]");
+		assertMalformed("{\"a\": undefined}");
+		assertMalformed("[True]");
+
+		//invalid numbers
+		assertMalformed("[-]");
+		assertMalformed("[01]");
+		assertMalformed("[1.]");
+		assertMalformed("[.5]");
+		assertMalformed("[1.2.3]");
+		assertMalformed("[0x1F]");
+		assertMalformed("[1e]");
+		assertMalformed("[-abc]");
+		assertMalformed("[1-2]");
+		assertMalformed("[+1]");
+
+		//invalid strings
+		assertMalformed("\"abc");
+		assertMalformed("\"\\x\"");
+		assertMalformed("\"\\u12G4\"");
+		assertMalformed("\"\\u12");
+		assertMalformed("['single']");
+
+		//invalid structure
+		assertMalformed("");
+		assertMalformed("[");
+		assertMalformed("[1,]");
+		assertMalformed("[1 2]");
+		assertMalformed("{\"a\" 1}");
+		assertMalformed("{\"a\":1,}");
+		assertMalformed("{a:1}");
+		assertMalformed("{\"a\":1]");
+		assertMalformed("[1}");
+		assertMalformed("[1] 2");
+		assertMalformed("{} {}");
+	}
+
+	private static JsonStreamReader reader(String json) {
+		return new JsonStreamReader(new StringReader(json));
+	}
+
+	private static Object parse(String json) throws IOException {
+		JsonStreamReader reader = reader(json);
+		try {
+			Object value = reader.readValue();
+			Assert.assertEquals(Token.END_DOCUMENT, reader.peek());
+			return value;
+		}
+		finally {
+			reader.close();
+		}
+	}
+
+	private static void assertMalformed(String json) throws IOException {
+		try {
+			parse(json);
+			Assert.fail("Expected a syntax error for: " + json);
+		}
+		catch (JSONException e) {
+			//expected
+		}
+	}
+}
@@ -0,0 +1,126 @@
+package tests;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import restservices.publish.RecentChanges;
+import restservices.publish.RecentChanges.Change;
+import restservices.util.RawJson;
+
+import com.google.common.collect.ImmutableList;
+
+public class RecentChangesTest {
+
+	@Test
+	public void testEmptyBuffer() {
+		RecentChanges changes = new RecentChanges(4, 10);
+
+		Assert.assertEquals(ImmutableList.of(), sequenceNrs(changes.getChangesSince(10)));
+		Assert.assertEquals(ImmutableList.of(), sequenceNrs(changes.getChangesSince(15)));
+		Assert.assertNull(changes.getChangesSince(9));
+		Assert.assertNull(changes.getChangesSince(0));
+	}
+
+	@Test
+	public void testWithoutCapacity() {
+		RecentChanges changes = new RecentChanges(0, 10);
+		Assert.assertNull(changes.getChangesSince(10));
+
+		changes.add(11, json(11));
+		Assert.assertNull(changes.getChangesSince(10));
+		Assert.assertNull(changes.getChangesSince(11));
+	}
+
+	@Test
+	public void testChangesSince() {
+		RecentChanges changes = new RecentChanges(4, 10);
+		changes.add(11, json(11));
+		changes.add(12, json(12));
+		changes.add(13, json(13));
+
+		Assert.assertEquals(ImmutableList.of(11L, 12L, 13L), sequenceNrs(changes.getChangesSince(10)));
+		Assert.assertEquals(ImmutableList.of(12L, 13L), sequenceNrs(changes.getChangesSince(11)));
+		Assert.assertEquals(ImmutableList.of(), sequenceNrs(changes.getChangesSince(13)));
+		Assert.assertEquals(ImmutableList.of(), sequenceNrs(changes.getChangesSince(20)));
+		Assert.assertNull(changes.getChangesSince(9));
+
+		Assert.assertEquals("{\"seq\":12}", changes.getChangesSince(11).get(0).getJson().toString());
+	}
+
+	@Test
+	public void testWraparound() {
+		RecentChanges changes = new RecentChanges(4, 0);
+		for(long i = 1; i <= 10; i++)
+			changes.add(i, json(i));
+
+		Assert.assertEquals(ImmutableList.of(7L, 8L, 9L, 10L), sequenceNrs(changes.getChangesSince(6)));
+		Assert.assertEquals(ImmutableList.of(9L, 10L), sequenceNrs(changes.getChangesSince(8)));
+		Assert.assertEquals(ImmutableList.of(), sequenceNrs(changes.getChangesSince(10)));
+		Assert.assertEquals("{\"seq\":7}", changes.getChangesSince(6).get(0).getJson().toString());
+
+		//since older than the buffer
+		Assert.assertNull(changes.getChangesSince(5));
+		Assert.assertNull(changes.getChangesSince(0));
+
+		//many wraps, each position of the window
+		RecentChanges wrapped = new RecentChanges(7, 0);
+		for(long i = 1; i <= 1000; i++) {
+			wrapped.add(i, json(i));
+			for(long since = i - 10; since <= i; since++) {
+				List<Change> result = wrapped.getChangesSince(since);
+				if (since < Math.max(0, i - 7))
+					Assert.assertNull(result);
+				else
+					Assert.assertEquals(range(Math.max(since, 0) + 1, i), sequenceNrs(result));
+			}
+		}
+	}
+
+	@Test
+	public void testPreviousSequenceNrCoverage() {
+		//sequence numbers are not necessarily consecutive
+		RecentChanges changes = new RecentChanges(3, 0);
+		changes.add(10, json(10));
+		changes.add(20, json(20));
+		changes.add(30, json(30));
+		changes.add(40, json(40));
+
+		//nothing was published between 10 and 20, so a consumer at 10 or 15 misses nothing
+		Assert.assertEquals(ImmutableList.of(20L, 30L, 40L), sequenceNrs(changes.getChangesSince(10)));
+		Assert.assertEquals(ImmutableList.of(20L, 30L, 40L), sequenceNrs(changes.getChangesSince(15)));
+		Assert.assertEquals(ImmutableList.of(30L, 40L), sequenceNrs(changes.getChangesSince(25)));
+
+		//change 10 was overwritten already
+		Assert.assertNull(changes.getChangesSince(5));
+		Assert.assertNull(changes.getChangesSince(0));
+
+		//the first change after the initial sequence number covers everything after it
+		RecentChanges initial = new RecentChanges(3, 100);
+		initial.add(150, json(150));
+		Assert.assertEquals(ImmutableList.of(150L), sequenceNrs(initial.getChangesSince(100)));
+		Assert.assertEquals(ImmutableList.of(150L), sequenceNrs(initial.getChangesSince(120)));
+		Assert.assertNull(initial.getChangesSince(99));
+	}
+
+	private static RawJson json(long sequenceNr) {
+		return new RawJson("{\"seq\":" + sequenceNr + "}");
+	}
+
+	private static List<Long> range(long from, long to) {
+		List<Long> result = new ArrayList<Long>();
+		for(long i = from; i <= to; i++)
+			result.add(i);
+		return result;
+	}
+
+	private static List<Long> sequenceNrs(List<Change> changes) {
+		Assert.assertNotNull(changes);
+		List<Long> result = new ArrayList<Long>();
+		for(Change change : changes)
+			result.add(change.getSequenceNr());
+		return result;
+	}
+}
@@ -0,0 +1,88 @@
+package tests;
+
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import restservices.util.UriRouter;
+import restservices.util.UriRouter.Match;
+import restservices.util.Utils;
+
+import com.google.common.collect.ImmutableMap;
+
+public class UriRouterTest {
+
+	@Test
+	public void tests() throws Exception {
+		//test slashes / exact matching
+		test("/nonfancy/path", "/nonfancy/path", true);
+		test("/nonfancy/path", "/nonfancy/dir", false);
+		test("/nonfancy/path", "/nonfancy/path/more", false);
+		test("/nonfancy/path", "/nonfancy", false);
+		test("/nonfancy/path/", "/nonfancy/path", true);
+		test("nonfancy/path/", "//nonfancy/path", true);
+		test("/nonfancy/path", "/nonfancy//path", false);
+
+		//test empty paths
+		test("/", "", true);
+		test("", "/", true);
+		test("/", "/nonfancy", false);
+
+		//test casing
+		test("/nonFANCY/path", "/nonfancy/path", true);
+		test("/nonfancy/path", "/nonFANCY/path", true);
+
+		//test params
+		test("/nonFANCY/{param}", "/nonfancy/PATH/", ImmutableMap.of("param", "PATH"));
+		test("/nonFANCY/{param}", "/nonfancy/", false);
+		test("/nonFANCY/{param}", "/nonfancy/a;b", false);
+		test("/nonFANCY/{param}/bla", "/nonfancy/%7Bparam%7D/bla", ImmutableMap.of("param", "{param}"));
+		test("/nonFANCY/{param1}-{param2}/bla", "/nonfancy/1-3/BLA", ImmutableMap.of("param1", "1", "param2", "3"));
+		test("/nonFANCY/{param1}-{param2}/bla", "/nonfancy/13/bla", false);
+
+		//url decoding
+		test("/nonFANCY/{param}/bla", "/nonfancy/path%2fpath/bla", ImmutableMap.of("param", "path/path"));
+
+		String complex = "http://www.nu.nl/bla?q=3&param=value;  !@#$%^&*()_-+={}|[]\"\\:;\'<>?,./~`\n\r\t\b\fENDOFKEY";
+		test("/x/{param1}/{param2}", "/x/" + Utils.urlEncode(complex) + "/" + Utils.urlEncode(complex), ImmutableMap.of(
+				"param1", complex, "param2", complex));
+	}
+
+	@Test
+	public void testThatMatchesAreReturnedInOrderOfRegistration() {
+		UriRouter<String> router = UriRouter.<String>builder()
+				.add("/service/{id}", "GET item")
+				.add("/service/changes/list", "GET changes")
+				.add("/service/changes", "GET changes root")
+				.add("/service/{key}", "PUT item")
+				.build();
+
+		List<Match<String>> matches = router.match("/service/changes");
+		Assert.assertEquals(3, matches.size());
+		Assert.assertEquals("GET item", matches.get(0).getValue());
+		Assert.assertEquals(ImmutableMap.of("id", "changes"), matches.get(0).getParams());
+		Assert.assertEquals("GET changes root", matches.get(1).getValue());
+		Assert.assertTrue(matches.get(1).getParams().isEmpty());
+		Assert.assertEquals("PUT item", matches.get(2).getValue());
+		Assert.assertEquals(ImmutableMap.of("key", "changes"), matches.get(2).getParams());
+
+		matches = router.match("/SERVICE/changes/list/");
+		Assert.assertEquals(1, matches.size());
+		Assert.assertEquals("GET changes", matches.get(0).getValue());
+
+		Assert.assertTrue(router.match("/other/changes").isEmpty());
+	}
+
+	private void test(String template, String testPath, Map<String, String> expectedParams) {
+		List<Match<String>> matches = UriRouter.<String>builder().add(template, template).build().match(testPath);
+
+		Assert.assertEquals(1, matches.size());
+		Assert.assertEquals(expectedParams, matches.get(0).getParams());
+	}
+
+	private void test(String template, String testPath, boolean shouldMatch) {
+		Assert.assertEquals(shouldMatch, !UriRouter.<String>builder().add(template, template).build().match(testPath).isEmpty());
+	}
+}
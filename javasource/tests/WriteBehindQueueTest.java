@@ -0,0 +1,222 @@
+package tests;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import restservices.publish.WriteBehindQueue;
+import restservices.publish.WriteBehindQueue.Processor;
+
+import com.google.common.collect.ImmutableList;
+
+public class WriteBehindQueueTest {
+
+	@Test
+	public void testCoalescing() throws Exception {
+		Recorder recorder = new Recorder();
+		WriteBehindQueue<Integer> queue = new WriteBehindQueue<Integer>("test", 1, 10, 200, recorder);
+
+		Assert.assertTrue(queue.add("a", 1));
+		Assert.assertTrue(queue.add("b", 2));
+		Assert.assertTrue(queue.add("a", 3));
+		Assert.assertTrue(queue.add("a", 4));
+		Assert.assertEquals(2, queue.size());
+
+		recorder.await(2);
+		Assert.assertEquals(ImmutableList.of("b:2@0", "a:4@0"), recorder.processed());
+		Assert.assertEquals(0, queue.stop(1000));
+	}
+
+	@Test
+	public void testDelay() throws Exception {
+		Recorder recorder = new Recorder();
+		WriteBehindQueue<Integer> queue = new WriteBehindQueue<Integer>("test", 1, 10, 300, recorder);
+
+		long start = System.currentTimeMillis();
+		queue.add("a", 1);
+		recorder.await(1);
+		Assert.assertTrue(recorder.time(0) - start >= 300);
+		Assert.assertEquals(0, queue.stop(1000));
+	}
+
+	@Test
+	public void testPostponeWithBackoff() throws Exception {
+		Recorder recorder = new Recorder() {
+			@Override
+			public boolean process(String key, Integer change, int attempt) throws Exception {
+				super.process(key, change, attempt);
+				return attempt >= 2;
+			}
+		};
+		WriteBehindQueue<Integer> queue = new WriteBehindQueue<Integer>("test", 1, 10, 0, recorder);
+
+		queue.add("a", 1);
+		recorder.await(3);
+		Assert.assertEquals(ImmutableList.of("a:1@0", "a:1@1", "a:1@2"), recorder.processed());
+
+		//retried after 100 and 200 milliseconds
+		Assert.assertTrue(recorder.time(1) - recorder.time(0) >= 100);
+		Assert.assertTrue(recorder.time(2) - recorder.time(1) >= 200);
+		Assert.assertEquals(0, queue.stop(1000));
+	}
+
+	@Test
+	public void testNewerChangeReplacesPostponed() throws Exception {
+		final AtomicReference<WriteBehindQueue<Integer>> queue = new AtomicReference<WriteBehindQueue<Integer>>();
+		Recorder recorder = new Recorder() {
+			@Override
+			public boolean process(String key, Integer change, int attempt) throws Exception {
+				super.process(key, change, attempt);
+				if (change == 1) {
+					queue.get().add(key, 2);
+					return false;
+				}
+				return true;
+			}
+		};
+		queue.set(new WriteBehindQueue<Integer>("test", 1, 10, 0, recorder));
+
+		queue.get().add("a", 1);
+		recorder.await(2);
+		Thread.sleep(300); //the postponed change would have been retried by now
+		Assert.assertEquals(ImmutableList.of("a:1@0", "a:2@0"), recorder.processed());
+		Assert.assertEquals(0, queue.get().size());
+		queue.get().stop(1000);
+	}
+
+	@Test
+	public void testKeyNotProcessedConcurrently() throws Exception {
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final AtomicInteger running = new AtomicInteger();
+		final AtomicInteger maxRunning = new AtomicInteger();
+
+		Recorder recorder = new Recorder() {
+			@Override
+			public boolean process(String key, Integer change, int attempt) throws Exception {
+				if (key.equals("a")) {
+					maxRunning.set(Math.max(maxRunning.get(), running.incrementAndGet()));
+					if (change == 1) {
+						started.countDown();
+						release.await();
+					}
+					running.decrementAndGet();
+				}
+				return super.process(key, change, attempt);
+			}
+		};
+		WriteBehindQueue<Integer> queue = new WriteBehindQueue<Integer>("test", 4, 10, 0, recorder);
+
+		queue.add("a", 1);
+		Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+
+		//other keys are processed by other threads, the same key waits
+		queue.add("a", 2);
+		queue.add("b", 3);
+		recorder.await(1);
+		Thread.sleep(100);
+		Assert.assertEquals(ImmutableList.of("b:3@0"), recorder.processed());
+		Assert.assertEquals(2, queue.size());
+
+		release.countDown();
+		recorder.await(3);
+		Assert.assertEquals(ImmutableList.of("b:3@0", "a:1@0", "a:2@0"), recorder.processed());
+		Assert.assertEquals(1, maxRunning.get());
+		Assert.assertEquals(0, queue.stop(1000));
+	}
+
+	@Test
+	public void testStop() throws Exception {
+		Recorder recorder = new Recorder();
+		WriteBehindQueue<Integer> queue = new WriteBehindQueue<Integer>("test", 2, 10, 60000, recorder);
+
+		queue.add("a", 1);
+		queue.add("b", 2);
+		queue.add("c", 3);
+
+		//remaining changes are processed without waiting for their delay
+		long start = System.currentTimeMillis();
+		Assert.assertEquals(0, queue.stop(5000));
+		Assert.assertTrue(System.currentTimeMillis() - start < 5000);
+		Assert.assertEquals(3, recorder.processed().size());
+
+		//stopped queues reject changes, so the caller processes them itself
+		Assert.assertFalse(queue.add("d", 4));
+		Assert.assertEquals(0, queue.size());
+	}
+
+	@Test
+	public void testStopTimeout() throws Exception {
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		WriteBehindQueue<Integer> queue = new WriteBehindQueue<Integer>("test", 1, 10, 0, new Processor<Integer>() {
+
+			@Override
+			public boolean process(String key, Integer change, int attempt) throws Exception {
+				started.countDown();
+				release.await();
+				return true;
+			}
+		});
+
+		queue.add("a", 1);
+		Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+		queue.add("b", 2);
+
+		Assert.assertEquals(2, queue.stop(200));
+		release.countDown();
+	}
+
+	@Test
+	public void testMaxLength() throws Exception {
+		Recorder recorder = new Recorder();
+		WriteBehindQueue<Integer> queue = new WriteBehindQueue<Integer>("test", 1, 2, 60000, recorder);
+
+		Assert.assertTrue(queue.add("a", 1));
+		Assert.assertTrue(queue.add("b", 2));
+		Assert.assertFalse(queue.add("c", 3));
+
+		//replacing a queued change does not need room
+		Assert.assertTrue(queue.add("a", 4));
+		Assert.assertEquals(2, queue.size());
+
+		Assert.assertEquals(0, queue.stop(5000));
+		Assert.assertEquals(ImmutableList.of("b:2@0", "a:4@0"), recorder.processed());
+	}
+
+	private static class Recorder implements Processor<Integer> {
+		private final List<String> processed = new ArrayList<String>();
+		private final List<Long> times = new ArrayList<Long>();
+
+		@Override
+		public boolean process(String key, Integer change, int attempt) throws Exception {
+			synchronized(this) {
+				processed.add(key + ":" + change + "@" + attempt);
+				times.add(System.currentTimeMillis());
+				notifyAll();
+			}
+			return true;
+		}
+
+		synchronized List<String> processed() {
+			return new ArrayList<String>(processed);
+		}
+
+		synchronized long time(int index) {
+			return times.get(index);
+		}
+
+		synchronized void await(int count) throws InterruptedException {
+			long deadline = System.currentTimeMillis() + 5000;
+			while(processed.size() < count && System.currentTimeMillis() < deadline)
+				wait(Math.max(1, deadline - System.currentTimeMillis()));
+			Assert.assertTrue("Expected " + count + " changes to be processed", processed.size() >= count);
+		}
+	}
+}